@@ -0,0 +1,74 @@
+package org.cora.physics.Engine;
+
+import org.cora.maths.sRectangle;
+import org.cora.physics.entities.Particle;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Structure used to find elements that may collide
+ * Used by contact engine before narrow phase
+ */
+public interface BroadPhase
+{
+    /**
+     * Update structure with the saved bounds of all elements
+     * Called once each step before contacts resolution, on the calling thread
+     * Form, saved bounds and form cache of elements are already up to date, they are computed by contact engine
+     * before update so that narrow phase threads only read them
+     * @param elements all elements handled by contact engine
+     */
+    void update(ArrayList<Particle> elements);
+
+    /**
+     * Remove an element from the structure
+     * @param particle removed element
+     */
+    void remove(Particle particle);
+
+    /**
+     * Remove all elements from the structure
+     */
+    void clear();
+
+    /**
+     * Add each pair of elements that may collide once
+     * Called after update, pairs ids are stable while elements stay in the structure
+     * Pairs of elements that should not collide, see Particle.shouldCollide, are not added
+     * Only elements whose bounds overlap are paired, contact islands are built from these pairs
+     * @param pairs set filled with pairs
+     */
+    void findPairs(PairSet pairs);
+
+    /**
+     * Get id of an element, used in keys of its pairs
+     * @param particle element
+     * @return id or -1 if the element is not in the structure
+     */
+    int getId(Particle particle);
+
+    /**
+     * Get elements that may collide with particle
+     * @param particle element
+     * @param resParticles collection filled with elements
+     */
+    void retrieve(Particle particle, Collection<Particle> resParticles);
+
+    /**
+     * Get elements that may collide with a box
+     * @param rect box
+     * @param resParticles collection filled with elements
+     */
+    void retrieve(sRectangle rect, Collection<Particle> resParticles);
+
+    Object clone();
+
+    /**
+     * Copy an object and change each particle with a given one
+     * @param change map
+     * @return saved broad phase
+     */
+    Object clone(Map<Particle, Particle> change);
+}
@@ -0,0 +1,621 @@
+package org.cora.physics.Engine;
+
+import org.cora.maths.sRectangle;
+import org.cora.physics.entities.Particle;
+
+import java.util.*;
+
+/**
+ * Dynamic bounding volume hierarchy broad phase
+ * Leaves hold enlarged bounds, an element moving inside its fat bound is not updated
+ * Tree is balanced with rotations and has no world limit
+ */
+public class DynamicAABBTree implements BroadPhase, Cloneable
+{
+    private final static int NULL_NODE = -1;
+    private final static int DEFAULT_CAPACITY = 64;
+    public final static float DEFAULT_MARGIN = 4.0f;
+
+    private float margin;
+
+    // Nodes
+    private float[] minX, minY, maxX, maxY;
+    private int[] parent;
+    private int[] child1, child2;
+    private int[] height;
+    private Particle[] bodies;
+    private int root;
+    private int nodeCount;
+    private int freeList;
+
+    // Leaf of each element
+    private Map<Particle, Integer> proxies;
+
+    // Traversal
+    private int[] stack;
+
+    public DynamicAABBTree()
+    {
+        this(DEFAULT_MARGIN);
+    }
+
+    public DynamicAABBTree(float margin)
+    {
+        this(margin, DEFAULT_CAPACITY);
+    }
+
+    public DynamicAABBTree(float margin, int capacity)
+    {
+        if (capacity < 1)
+            capacity = 1;
+
+        this.margin = margin;
+        minX = new float[capacity];
+        minY = new float[capacity];
+        maxX = new float[capacity];
+        maxY = new float[capacity];
+        parent = new int[capacity];
+        child1 = new int[capacity];
+        child2 = new int[capacity];
+        height = new int[capacity];
+        bodies = new Particle[capacity];
+        proxies = new HashMap<Particle, Integer>();
+        stack = new int[64];
+
+        root = NULL_NODE;
+        nodeCount = 0;
+        linkFreeNodes(0);
+    }
+
+    @Override
+    public Object clone()
+    {
+        DynamicAABBTree t = null;
+
+        try
+        {
+            t = (DynamicAABBTree) super.clone();
+        }
+        catch (CloneNotSupportedException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+
+        t.proxies = new HashMap<Particle, Integer>(proxies);
+        t.bodies = bodies.clone();
+        t.copyArrays();
+        return t;
+    }
+
+    @Override
+    public Object clone(Map<Particle, Particle> change)
+    {
+        DynamicAABBTree t = null;
+
+        try
+        {
+            t = (DynamicAABBTree) super.clone();
+        }
+        catch (CloneNotSupportedException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+
+        t.proxies = new HashMap<Particle, Integer>();
+        t.bodies = new Particle[bodies.length];
+        for (Map.Entry<Particle, Integer> entry : proxies.entrySet())
+        {
+            Particle p = change.get(entry.getKey());
+            t.proxies.put(p, entry.getValue());
+            t.bodies[entry.getValue()] = p;
+        }
+        t.copyArrays();
+        return t;
+    }
+
+    private void copyArrays()
+    {
+        minX = minX.clone();
+        minY = minY.clone();
+        maxX = maxX.clone();
+        maxY = maxY.clone();
+        parent = parent.clone();
+        child1 = child1.clone();
+        child2 = child2.clone();
+        height = height.clone();
+        stack = new int[stack.length];
+    }
+
+    /**
+     * Add an element to the tree
+     * Its saved sRectangle bound must be computed
+     * @param particle added element
+     */
+    public void insert(Particle particle)
+    {
+        if (proxies.containsKey(particle))
+            return;
+
+        int leaf = allocateNode();
+        setFatBound(leaf, particle.getSavedSRectangleBound());
+        bodies[leaf] = particle;
+        height[leaf] = 0;
+        proxies.put(particle, leaf);
+
+        insertLeaf(leaf);
+    }
+
+    /**
+     * Move an element if its saved bound left its fat bound
+     * Insert it if not present
+     * @param particle updated element
+     * @return true if the tree has been changed
+     */
+    public boolean update(Particle particle)
+    {
+        Integer proxy = proxies.get(particle);
+        if (proxy == null)
+        {
+            insert(particle);
+            return true;
+        }
+
+        int leaf = proxy;
+        sRectangle bound = particle.getSavedSRectangleBound();
+        if (minX[leaf] <= bound.getMinX() && minY[leaf] <= bound.getMinY()
+                && maxX[leaf] >= bound.getMaxX() && maxY[leaf] >= bound.getMaxY())
+            return false;
+
+        removeLeaf(leaf);
+        setFatBound(leaf, bound);
+        insertLeaf(leaf);
+        return true;
+    }
+
+    @Override
+    public void update(ArrayList<Particle> elements)
+    {
+        for (int i = 0; i < elements.size(); i++)
+        {
+            update(elements.get(i));
+        }
+    }
+
+    @Override
+    public void remove(Particle particle)
+    {
+        Integer proxy = proxies.remove(particle);
+        if (proxy == null)
+            return;
+
+        removeLeaf(proxy);
+        freeNode(proxy);
+    }
+
+    @Override
+    public void clear()
+    {
+        proxies.clear();
+        Arrays.fill(bodies, null);
+        root = NULL_NODE;
+        nodeCount = 0;
+        linkFreeNodes(0);
+    }
+
+    @Override
+    public void findPairs(PairSet pairs)
+    {
+        if (root == NULL_NODE)
+            return;
+
+        for (int leaf = 0; leaf < bodies.length; leaf++)
+        {
+            if (bodies[leaf] == null)
+                continue;
+
+            int top = 0;
+            stack[top++] = root;
+
+            while (top > 0)
+            {
+                int node = stack[--top];
+
+                if (minX[node] > maxX[leaf] || maxX[node] < minX[leaf]
+                        || minY[node] > maxY[leaf] || maxY[node] < minY[leaf])
+                    continue;
+
+                if (child1[node] == NULL_NODE)
+                {
+                    // Each pair is found from its lowest leaf
+                    if (node > leaf && bodies[leaf].shouldCollide(bodies[node]))
+                        pairs.add(leaf, node, bodies[leaf], bodies[node]);
+                }
+                else
+                {
+                    if (top + 2 > stack.length)
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+
+                    stack[top++] = child1[node];
+                    stack[top++] = child2[node];
+                }
+            }
+        }
+    }
+
+    @Override
+    public int getId(Particle particle)
+    {
+        Integer id = proxies.get(particle);
+        return (id == null) ? -1 : id;
+    }
+
+    @Override
+    public void retrieve(Particle particle, Collection<Particle> resParticles)
+    {
+        sRectangle bound = particle.getSavedSRectangleBound();
+        query(bound.getMinX(), bound.getMinY(), bound.getMaxX(), bound.getMaxY(), particle, resParticles);
+    }
+
+    @Override
+    public void retrieve(sRectangle rect, Collection<Particle> resParticles)
+    {
+        query(rect.getMinX(), rect.getMinY(), rect.getMaxX(), rect.getMaxY(), null, resParticles);
+    }
+
+    private void query(float qMinX, float qMinY, float qMaxX, float qMaxY, Particle self,
+                       Collection<Particle> resParticles)
+    {
+        if (root == NULL_NODE)
+            return;
+
+        int top = 0;
+        stack[top++] = root;
+
+        while (top > 0)
+        {
+            int node = stack[--top];
+
+            if (minX[node] > qMaxX || maxX[node] < qMinX || minY[node] > qMaxY || maxY[node] < qMinY)
+                continue;
+
+            if (child1[node] == NULL_NODE)
+            {
+                if (bodies[node] != self)
+                    resParticles.add(bodies[node]);
+            }
+            else
+            {
+                if (top + 2 > stack.length)
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+
+                stack[top++] = child1[node];
+                stack[top++] = child2[node];
+            }
+        }
+    }
+
+    /**
+     * Get margin added to leaves bounds
+     * @return margin
+     */
+    public float getMargin()
+    {
+        return margin;
+    }
+
+    /**
+     * Set margin added to leaves bounds, used for next moved elements
+     * Large margin reduces updates but returns more candidates
+     * @param margin new margin
+     */
+    public void setMargin(float margin)
+    {
+        this.margin = margin;
+    }
+
+    /**
+     * Get height of the tree
+     * @return height, 0 if empty
+     */
+    public int getHeight()
+    {
+        return (root == NULL_NODE) ? 0 : height[root];
+    }
+
+    // Tree
+    private void insertLeaf(int leaf)
+    {
+        if (root == NULL_NODE)
+        {
+            root = leaf;
+            parent[root] = NULL_NODE;
+            return;
+        }
+
+        // Find best sibling
+        int index = root;
+        while (child1[index] != NULL_NODE)
+        {
+            int c1 = child1[index];
+            int c2 = child2[index];
+
+            float area = perimeter(index);
+            float combinedArea = perimeter(index, leaf);
+
+            // Cost of creating a new parent for this node and the leaf
+            float cost = 2.0f * combinedArea;
+
+            // Minimum cost of pushing the leaf further down
+            float inheritanceCost = 2.0f * (combinedArea - area);
+
+            float cost1 = childCost(c1, leaf) + inheritanceCost;
+            float cost2 = childCost(c2, leaf) + inheritanceCost;
+
+            if (cost < cost1 && cost < cost2)
+                break;
+
+            index = (cost1 < cost2) ? c1 : c2;
+        }
+
+        int sibling = index;
+
+        // Create a new parent
+        int oldParent = parent[sibling];
+        int newParent = allocateNode();
+        parent[newParent] = oldParent;
+        bodies[newParent] = null;
+        union(newParent, leaf, sibling);
+        height[newParent] = height[sibling] + 1;
+        child1[newParent] = sibling;
+        child2[newParent] = leaf;
+        parent[sibling] = newParent;
+        parent[leaf] = newParent;
+
+        if (oldParent != NULL_NODE)
+            replaceChild(oldParent, sibling, newParent);
+        else
+            root = newParent;
+
+        refit(parent[leaf]);
+    }
+
+    private void removeLeaf(int leaf)
+    {
+        if (leaf == root)
+        {
+            root = NULL_NODE;
+            return;
+        }
+
+        int p = parent[leaf];
+        int grandParent = parent[p];
+        int sibling = (child1[p] == leaf) ? child2[p] : child1[p];
+
+        if (grandParent != NULL_NODE)
+        {
+            replaceChild(grandParent, p, sibling);
+            parent[sibling] = grandParent;
+            freeNode(p);
+            refit(grandParent);
+        }
+        else
+        {
+            root = sibling;
+            parent[sibling] = NULL_NODE;
+            freeNode(p);
+        }
+    }
+
+    /**
+     * Walk up the tree, balance and fix bounds and heights
+     * @param index first node
+     */
+    private void refit(int index)
+    {
+        while (index != NULL_NODE)
+        {
+            index = balance(index);
+
+            int c1 = child1[index];
+            int c2 = child2[index];
+            height[index] = 1 + Math.max(height[c1], height[c2]);
+            union(index, c1, c2);
+
+            index = parent[index];
+        }
+    }
+
+    /**
+     * Rotate a node if its children heights differ too much
+     * @param iA node
+     * @return node at the position of iA after rotation
+     */
+    private int balance(int iA)
+    {
+        if (child1[iA] == NULL_NODE || height[iA] < 2)
+            return iA;
+
+        int iB = child1[iA];
+        int iC = child2[iA];
+        int balance = height[iC] - height[iB];
+
+        // Rotate C up
+        if (balance > 1)
+        {
+            int iF = child1[iC];
+            int iG = child2[iC];
+
+            child1[iC] = iA;
+            parent[iC] = parent[iA];
+            parent[iA] = iC;
+
+            if (parent[iC] != NULL_NODE)
+                replaceChild(parent[iC], iA, iC);
+            else
+                root = iC;
+
+            if (height[iF] > height[iG])
+            {
+                child2[iC] = iF;
+                child2[iA] = iG;
+                parent[iG] = iA;
+                union(iA, iB, iG);
+                union(iC, iA, iF);
+                height[iA] = 1 + Math.max(height[iB], height[iG]);
+                height[iC] = 1 + Math.max(height[iA], height[iF]);
+            }
+            else
+            {
+                child2[iC] = iG;
+                child2[iA] = iF;
+                parent[iF] = iA;
+                union(iA, iB, iF);
+                union(iC, iA, iG);
+                height[iA] = 1 + Math.max(height[iB], height[iF]);
+                height[iC] = 1 + Math.max(height[iA], height[iG]);
+            }
+            return iC;
+        }
+
+        // Rotate B up
+        if (balance < -1)
+        {
+            int iD = child1[iB];
+            int iE = child2[iB];
+
+            child1[iB] = iA;
+            parent[iB] = parent[iA];
+            parent[iA] = iB;
+
+            if (parent[iB] != NULL_NODE)
+                replaceChild(parent[iB], iA, iB);
+            else
+                root = iB;
+
+            if (height[iD] > height[iE])
+            {
+                child2[iB] = iD;
+                child1[iA] = iE;
+                parent[iE] = iA;
+                union(iA, iC, iE);
+                union(iB, iA, iD);
+                height[iA] = 1 + Math.max(height[iC], height[iE]);
+                height[iB] = 1 + Math.max(height[iA], height[iD]);
+            }
+            else
+            {
+                child2[iB] = iE;
+                child1[iA] = iD;
+                parent[iD] = iA;
+                union(iA, iC, iD);
+                union(iB, iA, iE);
+                height[iA] = 1 + Math.max(height[iC], height[iD]);
+                height[iB] = 1 + Math.max(height[iA], height[iE]);
+            }
+            return iB;
+        }
+
+        return iA;
+    }
+
+    // Tools
+    private void replaceChild(int node, int oldChild, int newChild)
+    {
+        if (child1[node] == oldChild)
+            child1[node] = newChild;
+        else
+            child2[node] = newChild;
+    }
+
+    private float childCost(int child, int leaf)
+    {
+        float combined = perimeter(child, leaf);
+        if (child1[child] == NULL_NODE)
+            return combined;
+        return combined - perimeter(child);
+    }
+
+    private float perimeter(int node)
+    {
+        return 2.0f * ((maxX[node] - minX[node]) + (maxY[node] - minY[node]));
+    }
+
+    private float perimeter(int a, int b)
+    {
+        float w = Math.max(maxX[a], maxX[b]) - Math.min(minX[a], minX[b]);
+        float h = Math.max(maxY[a], maxY[b]) - Math.min(minY[a], minY[b]);
+        return 2.0f * (w + h);
+    }
+
+    private void union(int node, int a, int b)
+    {
+        minX[node] = Math.min(minX[a], minX[b]);
+        minY[node] = Math.min(minY[a], minY[b]);
+        maxX[node] = Math.max(maxX[a], maxX[b]);
+        maxY[node] = Math.max(maxY[a], maxY[b]);
+    }
+
+    private void setFatBound(int node, sRectangle bound)
+    {
+        minX[node] = bound.getMinX() - margin;
+        minY[node] = bound.getMinY() - margin;
+        maxX[node] = bound.getMaxX() + margin;
+        maxY[node] = bound.getMaxY() + margin;
+    }
+
+    private int allocateNode()
+    {
+        if (freeList == NULL_NODE)
+        {
+            int capacity = minX.length * 2;
+            minX = Arrays.copyOf(minX, capacity);
+            minY = Arrays.copyOf(minY, capacity);
+            maxX = Arrays.copyOf(maxX, capacity);
+            maxY = Arrays.copyOf(maxY, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            child1 = Arrays.copyOf(child1, capacity);
+            child2 = Arrays.copyOf(child2, capacity);
+            height = Arrays.copyOf(height, capacity);
+            bodies = Arrays.copyOf(bodies, capacity);
+            linkFreeNodes(nodeCount);
+        }
+
+        int node = freeList;
+        freeList = parent[node];
+        parent[node] = NULL_NODE;
+        child1[node] = NULL_NODE;
+        child2[node] = NULL_NODE;
+        height[node] = 0;
+        nodeCount++;
+        return node;
+    }
+
+    private void freeNode(int node)
+    {
+        bodies[node] = null;
+        child1[node] = NULL_NODE;
+        child2[node] = NULL_NODE;
+        height[node] = -1;
+        parent[node] = freeList;
+        freeList = node;
+        nodeCount--;
+    }
+
+    /**
+     * Chain unused nodes, free list uses parent array
+     * @param from first unused node
+     */
+    private void linkFreeNodes(int from)
+    {
+        for (int i = from; i < parent.length - 1; i++)
+        {
+            parent[i] = i + 1;
+            height[i] = -1;
+        }
+        parent[parent.length - 1] = NULL_NODE;
+        height[parent.length - 1] = -1;
+        freeList = from;
+    }
+}
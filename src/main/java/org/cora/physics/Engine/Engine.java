@@ -3,14 +3,19 @@ package org.cora.physics.Engine;
 import org.cora.maths.Circle;
 import org.cora.maths.Form;
 import org.cora.maths.sRectangle;
-import org.cora.physics.collision.Contact;
+import org.cora.physics.collision.CollisionEvents;
+import org.cora.physics.collision.ContactConfig;
 import org.cora.physics.collision.ContactEngine;
-import org.cora.physics.collision.ContactGenerator;
+import org.cora.physics.entities.DampingFactors;
 import org.cora.physics.entities.Particle;
+import org.cora.physics.entities.material.MaterialRegistry;
 import org.cora.physics.force.ForceGenerator;
 import org.cora.physics.force.ForceRegistry;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Engine that handle objects physics
@@ -20,16 +25,32 @@ import java.util.*;
 public class Engine implements Cloneable
 {
     private Set<Particle> elements;
+    private ArrayList<Particle> elementsList;
     private ForceRegistry forceRegistry;
     private ContactEngine contactEngine;
+    private MaterialRegistry materialRegistry;
+    private ForkJoinPool integrationPool;
+    private DampingFactors dampingFactors;
     private float minDt = 0.02f;
+    private boolean fixedStep = false;
+    private float fixedDt = 1.0f / 30.0f;
+    private int maxSubSteps = 5;
+    private float accumulator = 0;
+    private float interpolationAlpha = 1.0f;
+    private int subSteps = 0;
+    private boolean autoSleep = false;
+    private float sleepLinearThreshold = 1.0f;
+    private float sleepAngularThreshold = 0.05f;
+    private float timeToSleep = 0.5f;
     private sRectangle rectangle;
 
     public Engine()
     {
         elements = new HashSet<Particle>();
+        elementsList = new ArrayList<Particle>();
         forceRegistry = new ForceRegistry();
         contactEngine = new ContactEngine();
+        materialRegistry = new MaterialRegistry();
     }
 
     @Override
@@ -39,13 +60,14 @@ public class Engine implements Cloneable
 
         try
         {
-            super.clone();
+            engine = (Engine) super.clone();
         }
         catch (CloneNotSupportedException e)
         {
-
+            return engine;
         }
         engine.elements = new HashSet<>(this.elements);
+        engine.elementsList = new ArrayList<>(this.elementsList);
         engine.forceRegistry = (ForceRegistry) forceRegistry.clone();
         engine.contactEngine = (ContactEngine) contactEngine.clone();
         return engine;
@@ -61,7 +83,7 @@ public class Engine implements Cloneable
         for (Iterator<Particle> it = elements.iterator(); it.hasNext(); )
         {
             Particle p = it.next();
-            Circle circle = p.getCircleBound();
+            Circle circle = p.getSavedCircleBound();
 
             if (minX > circle.getMinX())
             {
@@ -96,18 +118,78 @@ public class Engine implements Cloneable
 
         try
         {
-            super.clone();
+            engine = (Engine) super.clone();
         }
         catch (CloneNotSupportedException e)
         {
-
+            return engine;
+        }
+        engine.elementsList = new ArrayList<>();
+        for (int i = 0; i < elementsList.size(); i++)
+        {
+            engine.elementsList.add(change.get(elementsList.get(i)));
         }
-        engine.elements = change.keySet();
+        engine.elements = new HashSet<>(engine.elementsList);
         engine.forceRegistry = (ForceRegistry) forceRegistry.clone(change);
         engine.contactEngine = (ContactEngine) contactEngine.clone(change);
         return engine;
     }
 
+    /**
+     * Get number of bytes written by snapshot
+     * Changes when elements are added or removed and when kept contacts or colliding pairs change
+     * @return size in bytes
+     */
+    public int getSnapshotSize()
+    {
+        int size = 2 * 4;
+        for (int i = 0; i < elementsList.size(); i++)
+        {
+            size += elementsList.get(i).getStateSize();
+        }
+        return size + contactEngine.getStateSize();
+    }
+
+    /**
+     * Write state of all elements, kept contacts and colliding pairs at buffer position
+     * Buffer can be reused, nothing is allocated
+     * @param buffer buffer with at least getSnapshotSize remaining bytes
+     */
+    public void snapshot(ByteBuffer buffer)
+    {
+        buffer.putInt(elementsList.size());
+        buffer.putFloat(accumulator);
+        for (int i = 0; i < elementsList.size(); i++)
+        {
+            elementsList.get(i).writeState(buffer);
+        }
+        contactEngine.writeState(buffer);
+    }
+
+    /**
+     * Read state written by snapshot back in elements, kept contacts and colliding pairs
+     * Elements must be the same, in the same order, as when the snapshot was written
+     * Events of next update compare its colliding pairs with the restored ones
+     * @param buffer buffer at position of the snapshot
+     * @return false if the number of elements has changed, nothing is read
+     */
+    public boolean restore(ByteBuffer buffer)
+    {
+        if (buffer.getInt(buffer.position()) != elementsList.size())
+            return false;
+
+        buffer.getInt();
+        accumulator = buffer.getFloat();
+        if (fixedStep)
+            interpolationAlpha = accumulator / fixedDt;
+        for (int i = 0; i < elementsList.size(); i++)
+        {
+            elementsList.get(i).readState(buffer);
+        }
+        contactEngine.readState(buffer);
+        return true;
+    }
+
     /**
      * Add an element to the engine
      * @param p element added to the engine
@@ -117,6 +199,7 @@ public class Engine implements Cloneable
         if (!elements.contains(p))
         {
             elements.add(p);
+            elementsList.add(p);
             contactEngine.add(p);
         }
     }
@@ -130,6 +213,7 @@ public class Engine implements Cloneable
         if (!elements.contains(p))
         {
             elements.add(p);
+            elementsList.add(p);
         }
     }
 
@@ -140,6 +224,7 @@ public class Engine implements Cloneable
     public void removeElement(Particle p)
     {
         elements.remove(p);
+        elementsList.remove(p);
         contactEngine.remove(p);
         forceRegistry.removeAll(p);
     }
@@ -153,6 +238,7 @@ public class Engine implements Cloneable
     public void addForce(Particle p, ForceGenerator force)
     {
         forceRegistry.add(p, force);
+        p.setAwake(true);
     }
 
     /**
@@ -176,22 +262,117 @@ public class Engine implements Cloneable
 
     /**
      * Update the engine
-     * 2 steps
-     * 1) apply force
-     * 2) contacts resolution
+     * In fixed step mode, elapsed time is accumulated and consumed by steps of fixed dt
+     * Otherwise one step is done with dt limited by minDt
      * @param dt time between since last update
      */
     public void update(float dt)
     {
-        if (dt > minDt)
-            dt = minDt;
+        if (!fixedStep)
+        {
+            if (dt > minDt)
+                dt = minDt;
+
+            step(dt);
+            subSteps = 1;
+            interpolationAlpha = 1.0f;
+            return;
+        }
 
-        forceRegistry.update(dt);
-        for (Particle p : elements)
+        accumulator += dt;
+        subSteps = 0;
+        while (accumulator >= fixedDt && subSteps < maxSubSteps)
         {
-            p.integrate(dt);
+            for (int i = 0; i < elementsList.size(); i++)
+            {
+                elementsList.get(i).savePreviousState();
+            }
+
+            step(fixedDt);
+            accumulator -= fixedDt;
+            subSteps++;
+        }
+
+        // Too much time to catch up, remaining steps are dropped
+        if (accumulator >= fixedDt)
+            accumulator = accumulator % fixedDt;
+
+        interpolationAlpha = accumulator / fixedDt;
+    }
+
+    /**
+     * Do one step
+     * 3 steps
+     * 1) apply force, bounds of moved elements are computed once after integration
+     * 2) contacts resolution
+     * 3) put slow elements to sleep, if auto sleep is active, elements touching each other sleep together
+     * @param dt time of the step
+     */
+    private void step(float dt)
+    {
+        forceRegistry.update(dt, isDeterministic() ? null : integrationPool);
+        dampingFactors = DampingFactors.get(dampingFactors, dt);
+        if (integrationPool != null && elementsList.size() > IntegrateTask.MIN_ELEMENTS)
+        {
+            integrationPool.invoke(new IntegrateTask(0, elementsList.size(), dt));
+        }
+        else
+        {
+            for (int i = 0; i < elementsList.size(); i++)
+            {
+                elementsList.get(i).integrate(dt, dampingFactors);
+                elementsList.get(i).updateBounds();
+            }
         }
         contactEngine.update(dt);
+
+        if (autoSleep)
+        {
+            for (int i = 0; i < elementsList.size(); i++)
+            {
+                elementsList.get(i).updateSleepTime(dt, sleepLinearThreshold, sleepAngularThreshold);
+            }
+            contactEngine.shareSleepTime();
+            for (int i = 0; i < elementsList.size(); i++)
+            {
+                elementsList.get(i).trySleep(timeToSleep);
+            }
+        }
+    }
+
+    /**
+     * Integrate a range of elements, split between pool threads
+     */
+    private class IntegrateTask extends RecursiveAction
+    {
+        private final static int MIN_ELEMENTS = 256;
+
+        private final int start, end;
+        private final float dt;
+
+        public IntegrateTask(int start, int end, float dt)
+        {
+            this.start = start;
+            this.end = end;
+            this.dt = dt;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (end - start <= MIN_ELEMENTS)
+            {
+                for (int i = start; i < end; i++)
+                {
+                    elementsList.get(i).integrate(dt, dampingFactors);
+                    elementsList.get(i).updateBounds();
+                }
+                return;
+            }
+
+            int middle = (start + end) >>> 1;
+            invokeAll(new IntegrateTask(start, middle, dt), new IntegrateTask(middle, end, dt));
+        }
     }
 
     /**
@@ -209,7 +390,26 @@ public class Engine implements Cloneable
      * High thresold will make strange results
      * @param threshold value used in contacts resolution
      */
-    public void setThresholdSideDetection(float threshold) { ContactGenerator.THRESHOLD_SIDE_DETECTION = threshold; }
+    public void setThresholdSideDetection(float threshold) { contactEngine.getConfig().setThresholdSideDetection(threshold); }
+
+    /**
+     * Get contact tuning of this engine
+     * Each engine has its own configuration, engines can be updated at the same time
+     * @return configuration
+     */
+    public ContactConfig getContactConfig()
+    {
+        return contactEngine.getConfig();
+    }
+
+    /**
+     * Change contact tuning of this engine
+     * @param config configuration
+     */
+    public void setContactConfig(ContactConfig config)
+    {
+        contactEngine.setConfig(config);
+    }
 
     /**
      * Default paramater for non material type collision
@@ -217,7 +417,7 @@ public class Engine implements Cloneable
      */
     public void setDefaultFriction(float defaultFriction)
     {
-        Contact.DEFAULT_FRICTION = defaultFriction;
+        contactEngine.getConfig().setDefaultFriction(defaultFriction);
     }
 
     /**
@@ -226,7 +426,7 @@ public class Engine implements Cloneable
      */
     public void setDefaultRestitution(float defaultRestitution)
     {
-        Contact.DEFAULT_RESTITUTION = defaultRestitution;
+        contactEngine.getConfig().setDefaultRestitution(defaultRestitution);
     }
 
     /**
@@ -235,7 +435,7 @@ public class Engine implements Cloneable
      */
     public void setDefaultSeparation(float defaultSeparation)
     {
-        Contact.DEFAULT_SEP = defaultSeparation;
+        contactEngine.getConfig().setDefaultSep(defaultSeparation);
     }
 
     /**
@@ -244,7 +444,7 @@ public class Engine implements Cloneable
      */
     public void setRestitutionCorrection(boolean correction)
     {
-        Contact.ACTIVE_RESTITUTION_CORRECTION = correction;
+        contactEngine.getConfig().setRestitutionCorrection(correction);
     }
 
 
@@ -254,7 +454,7 @@ public class Engine implements Cloneable
      * High thresold will make strange results
      * @return threshold value used in contacts resolution
      */
-    public float getThresholdSideDetection() { return ContactGenerator.THRESHOLD_SIDE_DETECTION; }
+    public float getThresholdSideDetection() { return contactEngine.getConfig().getThresholdSideDetection(); }
 
     /**
      * Default paramater for non material type collision
@@ -262,7 +462,7 @@ public class Engine implements Cloneable
      */
     public float getDefaultFriction()
     {
-        return Contact.DEFAULT_FRICTION;
+        return contactEngine.getConfig().getDefaultFriction();
     }
 
     /**
@@ -271,7 +471,7 @@ public class Engine implements Cloneable
      */
     public float setDefaultRestitution()
     {
-        return Contact.DEFAULT_RESTITUTION;
+        return contactEngine.getConfig().getDefaultRestitution();
     }
 
     /**
@@ -280,7 +480,7 @@ public class Engine implements Cloneable
      */
     public float setDefaultSeparation()
     {
-        return Contact.DEFAULT_SEP;
+        return contactEngine.getConfig().getDefaultSep();
     }
 
     /**
@@ -289,7 +489,7 @@ public class Engine implements Cloneable
      */
     public boolean setRestitutionCorrection()
     {
-        return Contact.ACTIVE_RESTITUTION_CORRECTION;
+        return contactEngine.getConfig().isRestitutionCorrection();
     }
 
     /**
@@ -301,6 +501,181 @@ public class Engine implements Cloneable
         return contactEngine.getQuadTree();
     }
 
+    /**
+     * Get broad phase used for collision detection
+     * @return broad phase
+     */
+    public final BroadPhase getBroadPhase()
+    {
+        return contactEngine.getBroadPhase();
+    }
+
+    /**
+     * Change broad phase used for collision detection
+     * Quadtree, if null
+     * @param broadPhase new broad phase
+     */
+    public void setBroadPhase(BroadPhase broadPhase)
+    {
+        contactEngine.setBroadPhase(broadPhase);
+    }
+
+    /**
+     * Set pool used to resolve contact islands in parallel
+     * Islands are groups of touching elements, they share no moving element
+     * @param pool fork join pool, null to resolve on calling thread
+     */
+    public void setContactPool(ForkJoinPool pool)
+    {
+        contactEngine.setPool(pool);
+    }
+
+    /**
+     * Get pool used to resolve contact islands in parallel
+     * @return pool or null if resolution is done on calling thread
+     */
+    public ForkJoinPool getContactPool()
+    {
+        return contactEngine.getPool();
+    }
+
+    /**
+     * Set pool used to update forces and integrate elements in parallel
+     * Only thread safe force generators are updated in parallel, before the other ones
+     * Forces of an element may then be summed in another order, in deterministic mode forces are always updated on calling thread
+     * @param pool fork join pool, null to update on calling thread
+     */
+    public void setIntegrationPool(ForkJoinPool pool)
+    {
+        this.integrationPool = pool;
+    }
+
+    /**
+     * Get pool used to update forces and integrate elements in parallel
+     * @return pool or null if update is done on calling thread
+     */
+    public ForkJoinPool getIntegrationPool()
+    {
+        return integrationPool;
+    }
+
+    /**
+     * Generate contacts once each step and solve them with clamped accumulated impulses
+     * Impulses are warm started from last step
+     * @param sequentialImpulse true to use sequential impulses, false to resolve until there is no more collision
+     */
+    public void setSequentialImpulse(boolean sequentialImpulse)
+    {
+        contactEngine.setSequentialImpulse(sequentialImpulse);
+    }
+
+    public boolean isSequentialImpulse()
+    {
+        return contactEngine.isSequentialImpulse();
+    }
+
+    /**
+     * Set number of velocity iterations used by sequential impulses
+     * @param velocityIterations iterations each step
+     */
+    public void setVelocityIterations(int velocityIterations)
+    {
+        contactEngine.setVelocityIterations(velocityIterations);
+    }
+
+    public int getVelocityIterations()
+    {
+        return contactEngine.getVelocityIterations();
+    }
+
+    /**
+     * Make two runs with the same inputs give the same states
+     * Elements and forces are always updated in insertion order, damping uses StrictMath
+     * Deterministic mode also sorts pairs found by broad phase, so contacts are resolved in the same order
+     * Forces are updated on calling thread in registration order, even with an integration pool
+     * Integration and islands stay parallel, each element or island is updated by one thread
+     * @param deterministic true to sort pairs
+     */
+    public void setDeterministic(boolean deterministic)
+    {
+        contactEngine.setDeterministic(deterministic);
+    }
+
+    public boolean isDeterministic()
+    {
+        return contactEngine.isDeterministic();
+    }
+
+    /**
+     * Update engine with steps of fixed dt
+     * Elapsed time is accumulated between updates, previous state of elements is saved before each step
+     * @param fixedStep true to use fixed steps
+     */
+    public void setFixedStep(boolean fixedStep)
+    {
+        this.fixedStep = fixedStep;
+        accumulator = 0;
+        interpolationAlpha = 1.0f;
+
+        if (fixedStep)
+        {
+            for (int i = 0; i < elementsList.size(); i++)
+            {
+                elementsList.get(i).savePreviousState();
+            }
+        }
+    }
+
+    public boolean isFixedStep() { return fixedStep; }
+
+    /**
+     * Change dt of fixed steps
+     * @param fixedDt time of one step, must be positive
+     */
+    public void setFixedDt(float fixedDt)
+    {
+        if (!(fixedDt > 0))
+            throw new IllegalArgumentException("Fixed dt must be positive");
+
+        this.fixedDt = fixedDt;
+    }
+
+    public float getFixedDt() { return fixedDt; }
+
+    /**
+     * Change max number of fixed steps done by one update
+     * Time that would need more steps is dropped
+     * @param maxSubSteps max steps, at least 1
+     */
+    public void setMaxSubSteps(int maxSubSteps)
+    {
+        if (maxSubSteps < 1)
+            throw new IllegalArgumentException("Max sub steps must be at least 1");
+
+        this.maxSubSteps = maxSubSteps;
+    }
+
+    public int getMaxSubSteps() { return maxSubSteps; }
+
+    /**
+     * Get number of steps done by last update
+     * @return steps
+     */
+    public int getSubSteps() { return subSteps; }
+
+    /**
+     * Get time accumulated and not simulated yet
+     * @return time
+     */
+    public float getAccumulatedTime() { return accumulator; }
+
+    /**
+     * Get factor used to blend previous and current state of elements
+     * Remaining accumulated time divided by fixed dt, 1 when fixed step is not used
+     * @return alpha between 0 and 1
+     */
+    public float getInterpolationAlpha() { return interpolationAlpha; }
+
     /**
      * Change minDt engine update
      * If minDt is too high, slow pc will have strange collisions responses
@@ -315,6 +690,69 @@ public class Engine implements Cloneable
      */
     public float getMinDt() { return minDt; }
 
+    /**
+     * Active or desactive auto sleep
+     * Sleeping elements are not integrated, have no force update and no contact with other non moving elements
+     * Elements of an island, linked by contacts, sleep together once all of them are slow for long enough
+     * They wake up on contact with a moving element or when a force is applied
+     * @param autoSleep active or desactive feature
+     */
+    public void setAutoSleep(boolean autoSleep)
+    {
+        this.autoSleep = autoSleep;
+
+        if (!autoSleep)
+        {
+            for (Particle p : elements)
+            {
+                if (!p.isAwake())
+                    p.setAwake(true);
+            }
+        }
+    }
+
+    /**
+     * Know if auto sleep is active
+     * @return auto sleep state
+     */
+    public boolean isAutoSleep() { return autoSleep; }
+
+    /**
+     * Set max speed of an element to sleep
+     * @param sleepLinearThreshold speed value
+     */
+    public void setSleepLinearThreshold(float sleepLinearThreshold) { this.sleepLinearThreshold = sleepLinearThreshold; }
+
+    /**
+     * Get max speed of an element to sleep
+     * @return speed value
+     */
+    public float getSleepLinearThreshold() { return sleepLinearThreshold; }
+
+    /**
+     * Set max rotation speed of an element to sleep
+     * @param sleepAngularThreshold rotation speed in radians
+     */
+    public void setSleepAngularThreshold(float sleepAngularThreshold) { this.sleepAngularThreshold = sleepAngularThreshold; }
+
+    /**
+     * Get max rotation speed of an element to sleep
+     * @return rotation speed in radians
+     */
+    public float getSleepAngularThreshold() { return sleepAngularThreshold; }
+
+    /**
+     * Set time an element must stay below thresholds before sleeping
+     * @param timeToSleep time value
+     */
+    public void setTimeToSleep(float timeToSleep) { this.timeToSleep = timeToSleep; }
+
+    /**
+     * Get time an element must stay below thresholds before sleeping
+     * @return time value
+     */
+    public float getTimeToSleep() { return timeToSleep; }
+
     /**
      * Get elements colliding form QT
      * @param A element
@@ -355,6 +793,35 @@ public class Engine implements Cloneable
         return contactEngine.getCollisionsQTList(rec);
     }
 
+    /**
+     * Get registry of materials of this engine, shared with its copies
+     * Materials created with it share contact information
+     * @return material registry
+     */
+    public MaterialRegistry getMaterialRegistry()
+    {
+        return materialRegistry;
+    }
+
+    /**
+     * Get begin, persist and end events of colliding pairs of last step
+     * Colliding pairs are kept as pair keys, events only change when pairs start or stop colliding
+     * @return events of last step
+     */
+    public CollisionEvents getCollisionEvents()
+    {
+        return contactEngine.getCollisionEvents();
+    }
+
+    /**
+     * Set listener notified of collision events after each step
+     * @param listener listener, null to only keep events
+     */
+    public void setCollisionListener(CollisionEvents.CollisionListener listener)
+    {
+        contactEngine.getCollisionEvents().setListener(listener);
+    }
+
     /**
      * Know if two elements were colliding during last contact resolution
      * @param A first element
@@ -0,0 +1,277 @@
+package org.cora.physics.Engine;
+
+import org.cora.physics.entities.Particle;
+
+import java.util.Arrays;
+
+/**
+ * Set of elements pairs found by a broad phase
+ * Each pair is stored once, keys are packed ids in a primitive open addressing table
+ * Pairs keep insertion order unless sorted
+ */
+public class PairSet
+{
+    private final static long EMPTY = 0;
+
+    private long[] table;
+    private int[] tableSlots;
+
+    private long[] keys;
+    private Particle[] pairA, pairB;
+    private int size;
+
+    public PairSet()
+    {
+        this(64);
+    }
+
+    public PairSet(int capacity)
+    {
+        if (capacity < 1)
+            capacity = 1;
+
+        table = new long[tableSizeFor(capacity * 2)];
+        tableSlots = new int[capacity];
+        keys = new long[capacity];
+        pairA = new Particle[capacity];
+        pairB = new Particle[capacity];
+        size = 0;
+    }
+
+    /**
+     * Pack two ids in a key, order of ids does not matter
+     * @param idA id of first element
+     * @param idB id of second element
+     * @return key
+     */
+    public static long key(int idA, int idB)
+    {
+        int min = Math.min(idA, idB);
+        int max = Math.max(idA, idB);
+        return ((long) min << 32) | (max & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Get lowest id of a key
+     * @param key pair key
+     * @return first id
+     */
+    public static int getIdA(long key)
+    {
+        return (int) (key >>> 32);
+    }
+
+    /**
+     * Get highest id of a key
+     * @param key pair key
+     * @return second id
+     */
+    public static int getIdB(long key)
+    {
+        return (int) key;
+    }
+
+    /**
+     * Add a pair if not already present
+     * Element with the lowest id is stored first
+     * @param idA broad phase id of A, positive
+     * @param idB broad phase id of B, positive
+     * @param A first element
+     * @param B second element
+     * @return true if the pair has been added
+     */
+    public boolean add(int idA, int idB, Particle A, Particle B)
+    {
+        if (idA == idB)
+            return false;
+
+        long key = key(idA, idB);
+        int mask = table.length - 1;
+        int slot = hash(key) & mask;
+
+        while (table[slot] != EMPTY)
+        {
+            if (table[slot] == key)
+                return false;
+            slot = (slot + 1) & mask;
+        }
+
+        if ((size + 1) * 2 > table.length)
+        {
+            grow();
+            return add(idA, idB, A, B);
+        }
+
+        ensureCapacity(size + 1);
+        table[slot] = key;
+        tableSlots[size] = slot;
+        keys[size] = key;
+        pairA[size] = (idA < idB) ? A : B;
+        pairB[size] = (idA < idB) ? B : A;
+        size++;
+        return true;
+    }
+
+    /**
+     * Test if a pair is present
+     * @param key pair key
+     * @return true if present
+     */
+    public boolean contains(long key)
+    {
+        int mask = table.length - 1;
+        int slot = hash(key) & mask;
+
+        while (table[slot] != EMPTY)
+        {
+            if (table[slot] == key)
+                return true;
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Remove all pairs, keeps allocated memory
+     */
+    public void clear()
+    {
+        for (int i = 0; i < size; i++)
+        {
+            table[tableSlots[i]] = EMPTY;
+            pairA[i] = null;
+            pairB[i] = null;
+        }
+        size = 0;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public Particle getA(int i)
+    {
+        return pairA[i];
+    }
+
+    public Particle getB(int i)
+    {
+        return pairB[i];
+    }
+
+    public long getKey(int i)
+    {
+        return keys[i];
+    }
+
+    /**
+     * Sort pairs by key, order no longer depends on broad phase traversal
+     */
+    public void sort()
+    {
+        sort(0, size - 1);
+    }
+
+    // Tools
+    private void sort(int low, int high)
+    {
+        while (low < high)
+        {
+            long pivot = keys[(low + high) >>> 1];
+            int i = low;
+            int j = high;
+            while (i <= j)
+            {
+                while (keys[i] < pivot)
+                    i++;
+                while (keys[j] > pivot)
+                    j--;
+                if (i <= j)
+                {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+
+            // Recurse on smallest part
+            if (j - low < high - i)
+            {
+                sort(low, j);
+                low = i;
+            }
+            else
+            {
+                sort(i, high);
+                high = j;
+            }
+        }
+    }
+
+    private void swap(int i, int j)
+    {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+
+        int slot = tableSlots[i];
+        tableSlots[i] = tableSlots[j];
+        tableSlots[j] = slot;
+
+        Particle p = pairA[i];
+        pairA[i] = pairA[j];
+        pairA[j] = p;
+
+        p = pairB[i];
+        pairB[i] = pairB[j];
+        pairB[j] = p;
+    }
+
+    private void grow()
+    {
+        table = new long[table.length * 2];
+        int mask = table.length - 1;
+
+        for (int i = 0; i < size; i++)
+        {
+            int slot = hash(keys[i]) & mask;
+            while (table[slot] != EMPTY)
+            {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = keys[i];
+            tableSlots[i] = slot;
+        }
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity <= keys.length)
+            return;
+
+        int newCapacity = Math.max(capacity, keys.length * 2);
+        tableSlots = Arrays.copyOf(tableSlots, newCapacity);
+        keys = Arrays.copyOf(keys, newCapacity);
+        pairA = Arrays.copyOf(pairA, newCapacity);
+        pairB = Arrays.copyOf(pairB, newCapacity);
+    }
+
+    private static int hash(long key)
+    {
+        key ^= (key >>> 33);
+        key *= 0xff51afd7ed558ccdL;
+        key ^= (key >>> 33);
+        return (int) key;
+    }
+
+    private static int tableSizeFor(int n)
+    {
+        int size = 16;
+        while (size < n)
+        {
+            size <<= 1;
+        }
+        return size;
+    }
+}
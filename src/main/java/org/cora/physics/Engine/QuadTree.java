@@ -7,15 +7,27 @@ import org.cora.physics.entities.Particle;
 
 import java.util.*;
 
-public class QuadTree implements Cloneable
+public class QuadTree implements BroadPhase, Cloneable
 {
     private final static int MAX_OBJECTS = 5;
     private final static int MAX_LEVELS = 50;
+    // Children are merged back below half of split threshold, a node does not split and merge each step
+    private final static int MERGE_OBJECTS = MAX_OBJECTS / 2;
 
     private int level;
     private Set<Particle> particles;
     private sRectangle rect;
     private QuadTree[] nodes;
+    private QuadTree parent;
+    // Number of elements of this node and its children
+    private int count;
+    private Map<Particle, QuadTree> owners;
+    private Map<Particle, Integer> ids;
+    private int nextId;
+    private int[] freeIds;
+    private int freeIdCount;
+    private ArrayList<Particle> pathParticles;
+    private int[] pathIds;
 
     public QuadTree()
     {
@@ -25,6 +37,12 @@ public class QuadTree implements Cloneable
         particles = new HashSet<Particle>();
         rect = new sRectangle();
         nodes = new QuadTree[4];
+        parent = null;
+        owners = new HashMap<Particle, QuadTree>();
+        ids = new HashMap<Particle, Integer>();
+        nextId = 0;
+        freeIds = new int[16];
+        freeIdCount = 0;
     }
 
     public QuadTree(int level, sRectangle rect)
@@ -34,31 +52,32 @@ public class QuadTree implements Cloneable
 
         this.particles = new HashSet<Particle>();
         nodes = new QuadTree[4];
+        parent = null;
+        owners = new HashMap<Particle, QuadTree>();
+        ids = new HashMap<Particle, Integer>();
+        nextId = 0;
+        freeIds = new int[16];
+        freeIdCount = 0;
     }
 
-    @Override
-    public Object clone()
+    private QuadTree(QuadTree parent, sRectangle rect)
     {
-        QuadTree q = null;
-
-        try
-        {
-            q = (QuadTree) super.clone();
-        }
-        catch (CloneNotSupportedException e)
-        {
-            e.printStackTrace();
-        }
-
-        q.particles = new HashSet<Particle>(particles);
-        q.rect = (sRectangle) rect.clone();
-        q.nodes = new QuadTree[4];
+        this.level = parent.level + 1;
+        this.rect = rect;
 
-        for (int i = 0; i < nodes.length; i++)
-        {
-            q.nodes[i] = (QuadTree) nodes[i].clone();
-        }
+        this.particles = new HashSet<Particle>();
+        nodes = new QuadTree[4];
+        this.parent = parent;
+        owners = parent.owners;
+        ids = parent.ids;
+    }
 
+    @Override
+    public Object clone()
+    {
+        QuadTree q = copy(null);
+        if (q != null)
+            q.link(null, new HashMap<Particle, QuadTree>(), new HashMap<Particle, Integer>(ids));
         return q;
     }
 
@@ -67,7 +86,23 @@ public class QuadTree implements Cloneable
      * @param change map
      * @return saved quadTree
      */
+    @Override
     public Object clone(Map<Particle, Particle> change)
+    {
+        QuadTree q = copy(change);
+        if (q != null)
+        {
+            Map<Particle, Integer> qIds = new HashMap<Particle, Integer>();
+            for (Map.Entry<Particle, Integer> entry : ids.entrySet())
+            {
+                qIds.put(change.get(entry.getKey()), entry.getValue());
+            }
+            q.link(null, new HashMap<Particle, QuadTree>(), qIds);
+        }
+        return q;
+    }
+
+    private QuadTree copy(Map<Particle, Particle> change)
     {
         QuadTree q = null;
 
@@ -78,29 +113,59 @@ public class QuadTree implements Cloneable
         catch (CloneNotSupportedException e)
         {
             e.printStackTrace();
+            return null;
         }
 
         q.particles = new HashSet<Particle>();
         for (Iterator<Particle> iterator = particles.iterator(); iterator.hasNext(); )
         {
             Particle next =  iterator.next();
-            q.particles.add(change.get(next));
+            q.particles.add(change == null ? next : change.get(next));
         }
 
         q.rect = (sRectangle) rect.clone();
         q.nodes = new QuadTree[4];
+        q.pathParticles = null;
+        q.pathIds = null;
+        q.freeIds = (freeIds == null) ? null : freeIds.clone();
 
         if (nodes[0] != null)
         {
             for (int i = 0; i < nodes.length; i++)
             {
-                q.nodes[i] = (QuadTree) nodes[i].clone(change);
+                q.nodes[i] = nodes[i].copy(change);
             }
         }
 
         return q;
     }
 
+    /**
+     * Set parent and shared maps of this node and its children
+     * @param parent parent node
+     * @param owners node of each particle
+     * @param ids id of each particle
+     */
+    private void link(QuadTree parent, Map<Particle, QuadTree> owners, Map<Particle, Integer> ids)
+    {
+        this.parent = parent;
+        this.owners = owners;
+        this.ids = ids;
+
+        for (Iterator<Particle> iterator = particles.iterator(); iterator.hasNext(); )
+        {
+            owners.put(iterator.next(), this);
+        }
+
+        if (nodes[0] != null)
+        {
+            for (int i = 0; i < nodes.length; i++)
+            {
+                nodes[i].link(this, owners, ids);
+            }
+        }
+    }
+
     /**
      * Change particle with given one
      * @param change map of particles
@@ -111,7 +176,13 @@ public class QuadTree implements Cloneable
         for (Iterator<Particle> iterator = particles.iterator(); iterator.hasNext(); )
         {
             Particle next =  iterator.next();
-            newOne.add(change.get(next));
+            Particle changed = change.get(next);
+            newOne.add(changed);
+            owners.remove(next);
+            owners.put(changed, this);
+            Integer id = ids.remove(next);
+            if (id != null)
+                ids.put(changed, id);
         }
 
         particles = newOne;
@@ -126,12 +197,14 @@ public class QuadTree implements Cloneable
 
     public void init(sRectangle rect)
     {
+        clear();
         level = 0;
         this.rect.set(rect);
     }
 
     public void init(float x, float y, float width, float height)
     {
+        clear();
         level = 0;
         this.rect.set(x, y, width, height);
     }
@@ -141,9 +214,17 @@ public class QuadTree implements Cloneable
         this.rect = rect;
     }
 
+    @Override
     public void clear()
     {
+        for (Iterator<Particle> iterator = particles.iterator(); iterator.hasNext(); )
+        {
+            Particle next = iterator.next();
+            owners.remove(next);
+            releaseId(ids.remove(next));
+        }
         particles.clear();
+        count = 0;
         if (nodes[0] != null)
         {
             for (int i = 0; i < nodes.length; i++)
@@ -160,10 +241,10 @@ public class QuadTree implements Cloneable
         int subHeight = (int) (rect.getHeight() / 2);
         int x = (int) rect.getLeftX();
         int y = (int) rect.getLeftY();
-        nodes[0] = new QuadTree(level + 1, new sRectangle(x + subWidth, y, subWidth, subHeight));
-        nodes[1] = new QuadTree(level + 1, new sRectangle(x, y, subWidth, subHeight));
-        nodes[2] = new QuadTree(level + 1, new sRectangle(x, y + subHeight, subWidth, subHeight));
-        nodes[3] = new QuadTree(level + 1, new sRectangle(x + subWidth, y + subHeight, subWidth, subHeight));
+        nodes[0] = new QuadTree(this, new sRectangle(x + subWidth, y, subWidth, subHeight));
+        nodes[1] = new QuadTree(this, new sRectangle(x, y, subWidth, subHeight));
+        nodes[2] = new QuadTree(this, new sRectangle(x, y + subHeight, subWidth, subHeight));
+        nodes[3] = new QuadTree(this, new sRectangle(x + subWidth, y + subHeight, subWidth, subHeight));
     }
 
     public int getIndex(sRectangle rect)
@@ -212,6 +293,7 @@ public class QuadTree implements Cloneable
                     if (index != -1)
                     {
                         it.remove();
+                        changeCount(-1);
                         nodes[index].insert(p);
                     }
                 }
@@ -220,10 +302,49 @@ public class QuadTree implements Cloneable
             if (index != -1)
                 nodes[index].insert(particle);
             else
-                particles.add(particle);
+                add(particle);
         }
         else
-            particles.add(particle);
+            add(particle);
+    }
+
+    private void add(Particle particle)
+    {
+        particles.add(particle);
+        owners.put(particle, this);
+        changeCount(1);
+
+        if (!ids.containsKey(particle))
+        {
+            QuadTree root = getRoot();
+            int id = (root.freeIdCount > 0) ? root.freeIds[--root.freeIdCount] : root.nextId++;
+            ids.put(particle, id);
+        }
+    }
+
+    private QuadTree getRoot()
+    {
+        QuadTree root = this;
+        while (root.parent != null)
+        {
+            root = root.parent;
+        }
+        return root;
+    }
+
+    /**
+     * Ids of removed elements are reused, they stay lower than the number of elements
+     * @param id released id
+     */
+    private void releaseId(Integer id)
+    {
+        if (id == null)
+            return;
+
+        QuadTree root = getRoot();
+        if (root.freeIdCount == root.freeIds.length)
+            root.freeIds = Arrays.copyOf(root.freeIds, root.freeIds.length * 2);
+        root.freeIds[root.freeIdCount++] = id;
     }
 
     public void inserts(ArrayList<Particle> particles)
@@ -234,6 +355,204 @@ public class QuadTree implements Cloneable
         }
     }
 
+    /**
+     * Update all elements, the tree is kept between steps
+     * @param elements all elements handled by contact engine
+     */
+    @Override
+    public void update(ArrayList<Particle> elements)
+    {
+        for (int i = 0; i < elements.size(); i++)
+        {
+            update(elements.get(i));
+        }
+    }
+
+    /**
+     * Move an element only if its saved bound left its node
+     * Insert it if not present
+     * @param particle updated element
+     */
+    public void update(Particle particle)
+    {
+        QuadTree owner = owners.get(particle);
+        if (owner == null)
+        {
+            insert(particle);
+            return;
+        }
+
+        sRectangle bound = particle.getSavedSRectangleBound();
+        if (owner.isOwning(bound))
+            return;
+
+        owner.particles.remove(particle);
+        owners.remove(particle);
+        owner.changeCount(-1);
+
+        // Insert from the first node containing the bound
+        QuadTree node = owner;
+        while (node.parent != null && !node.contains(bound))
+        {
+            node = node.parent;
+        }
+        node.insert(particle);
+        owner.merge();
+    }
+
+    @Override
+    public void remove(Particle particle)
+    {
+        QuadTree owner = owners.remove(particle);
+        releaseId(ids.remove(particle));
+        if (owner != null)
+        {
+            owner.particles.remove(particle);
+            owner.changeCount(-1);
+            owner.merge();
+        }
+    }
+
+    private void changeCount(int delta)
+    {
+        for (QuadTree node = this; node != null; node = node.parent)
+        {
+            node.count += delta;
+        }
+    }
+
+    /**
+     * Merge children of the highest ancestor with few enough elements
+     * Elements of merged children are moved to the ancestor, empty nodes are not walked anymore
+     */
+    private void merge()
+    {
+        QuadTree node = null;
+        for (QuadTree ancestor = this; ancestor != null && ancestor.count <= MERGE_OBJECTS; ancestor = ancestor.parent)
+        {
+            node = ancestor;
+        }
+
+        if (node == null || node.nodes[0] == null)
+            return;
+
+        for (int i = 0; i < node.nodes.length; i++)
+        {
+            node.nodes[i].moveTo(node);
+            node.nodes[i] = null;
+        }
+    }
+
+    private void moveTo(QuadTree target)
+    {
+        for (Iterator<Particle> iterator = particles.iterator(); iterator.hasNext(); )
+        {
+            Particle p = iterator.next();
+            target.particles.add(p);
+            owners.put(p, target);
+        }
+
+        if (nodes[0] != null)
+        {
+            for (int i = 0; i < nodes.length; i++)
+            {
+                nodes[i].moveTo(target);
+            }
+        }
+    }
+
+    /**
+     * Each element may collide with elements of its node, its ancestors and its children
+     * Only elements with overlapping saved bounds are paired
+     * @param pairs set filled with pairs
+     */
+    @Override
+    public void findPairs(PairSet pairs)
+    {
+        if (pathParticles == null)
+        {
+            pathParticles = new ArrayList<Particle>();
+            pathIds = new int[16];
+        }
+
+        pathParticles.clear();
+        findPairs(pairs, pathParticles, this);
+    }
+
+    private void findPairs(PairSet pairs, ArrayList<Particle> path, QuadTree root)
+    {
+        int start = path.size();
+
+        for (Iterator<Particle> iterator = particles.iterator(); iterator.hasNext(); )
+        {
+            Particle p = iterator.next();
+            int id = ids.get(p);
+            sRectangle bound = p.getSavedSRectangleBound();
+
+            for (int i = 0; i < path.size(); i++)
+            {
+                Particle other = path.get(i);
+                if (overlaps(bound, other.getSavedSRectangleBound()) && p.shouldCollide(other))
+                    pairs.add(root.pathIds[i], id, other, p);
+            }
+
+            if (path.size() == root.pathIds.length)
+                root.pathIds = Arrays.copyOf(root.pathIds, root.pathIds.length * 2);
+            root.pathIds[path.size()] = id;
+            path.add(p);
+        }
+
+        if (nodes[0] != null)
+        {
+            for (int i = 0; i < nodes.length; i++)
+            {
+                nodes[i].findPairs(pairs, path, root);
+            }
+        }
+
+        while (path.size() > start)
+        {
+            path.remove(path.size() - 1);
+        }
+    }
+
+    private static boolean overlaps(sRectangle a, sRectangle b)
+    {
+        return a.getMinX() <= b.getMaxX() && a.getMaxX() >= b.getMinX()
+                && a.getMinY() <= b.getMaxY() && a.getMaxY() >= b.getMinY();
+    }
+
+    /**
+     * Test if this node is still the right one for a bound
+     * @param bound saved bound
+     * @return true if the bound can stay in this node
+     */
+    private boolean isOwning(sRectangle bound)
+    {
+        if (!contains(bound))
+            return false;
+
+        return nodes[0] == null || getIndex(bound) == -1;
+    }
+
+    private boolean contains(sRectangle bound)
+    {
+        // Root holds elements outside of its rect
+        if (parent == null)
+            return true;
+
+        return bound.getMinX() >= rect.getMinX() && bound.getMaxX() <= rect.getMaxX()
+                && bound.getMinY() >= rect.getMinY() && bound.getMaxY() <= rect.getMaxY();
+    }
+
+    @Override
+    public int getId(Particle particle)
+    {
+        Integer id = ids.get(particle);
+        return (id == null) ? -1 : id;
+    }
+
+    @Override
     public void retrieve(Particle particle, Collection<Particle> resParticles)
     {
         retrieve(particle.getSavedSRectangleBound(), resParticles);
@@ -245,6 +564,7 @@ public class QuadTree implements Cloneable
                 && rec.getY(0) > rect.getY(0) && rec.getY(2) < rect.getY(2);
     }
 
+    @Override
     public void retrieve(sRectangle rect, Collection<Particle> resParticles)
     {
         int index = getIndex(rect);
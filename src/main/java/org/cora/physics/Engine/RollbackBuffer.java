@@ -0,0 +1,229 @@
+package org.cora.physics.Engine;
+
+import org.cora.physics.collision.CollisionEvents;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Keep states of the last frames of an engine to rewind and simulate them again
+ * States are written in buffers allocated once, a buffer is only reallocated when the world grows
+ * Used when inputs of a past frame are corrected, frames from the corrected one are simulated again
+ * Colliding pairs are restored with each frame, events of frames simulated again are computed from them
+ * Collision listener is not notified while frames are simulated again, unless setNotifyOnRollback is used
+ */
+public class RollbackBuffer
+{
+    /**
+     * Apply inputs of a frame to elements of the engine, called before each frame update
+     * Must apply the same inputs when a frame is simulated again, corrected ones included
+     */
+    public interface InputHandler
+    {
+        /**
+         * @param engine updated engine
+         * @param frame frame about to be updated
+         */
+        void applyInputs(Engine engine, int frame);
+    }
+
+    private final Engine engine;
+    private InputHandler inputHandler;
+
+    private ByteBuffer[] states;
+    private int[] frames;
+    private float[] dts;
+    private int frame;
+    private boolean notifyOnRollback;
+
+    /**
+     * @param engine engine saved each frame
+     * @param capacity number of frames kept
+     */
+    public RollbackBuffer(Engine engine, int capacity)
+    {
+        this(engine, capacity, engine.getSnapshotSize() * 2);
+    }
+
+    /**
+     * @param engine engine saved each frame
+     * @param capacity number of frames kept
+     * @param stateSize initial size of one state in bytes
+     */
+    public RollbackBuffer(Engine engine, int capacity, int stateSize)
+    {
+        this.engine = engine;
+        inputHandler = null;
+        states = new ByteBuffer[Math.max(capacity, 1)];
+        for (int i = 0; i < states.length; i++)
+        {
+            states[i] = ByteBuffer.allocate(Math.max(stateSize, 64));
+        }
+        frames = new int[states.length];
+        Arrays.fill(frames, -1);
+        dts = new float[states.length];
+        frame = 0;
+        notifyOnRollback = false;
+    }
+
+    /**
+     * Save state of current frame, apply its inputs and update the engine
+     * @param dt time of the frame
+     */
+    public void update(float dt)
+    {
+        save(frame, dt);
+        if (inputHandler != null)
+            inputHandler.applyInputs(engine, frame);
+        engine.update(dt);
+        frame++;
+    }
+
+    /**
+     * Restore state saved at the start of a past frame and update again up to current frame
+     * Each frame is updated with its saved dt and the inputs given by input handler
+     * Collision listener is detached during these updates, unless notify on rollback is set
+     * @param from first frame to update again
+     * @return false if the frame is not kept anymore, engine is not changed
+     */
+    public boolean rollback(int from)
+    {
+        int present = frame;
+        if (!rewind(from))
+            return false;
+
+        CollisionEvents events = engine.getCollisionEvents();
+        CollisionEvents.CollisionListener listener = events.getListener();
+        if (!notifyOnRollback)
+            events.setListener(null);
+        try
+        {
+            while (frame < present)
+            {
+                update(dts[frame % states.length]);
+            }
+        }
+        finally
+        {
+            events.setListener(listener);
+        }
+        return true;
+    }
+
+    /**
+     * Restore state saved at the start of a past frame, frames after it are dropped
+     * @param to frame to restore
+     * @return false if the frame is not kept anymore, engine is not changed
+     */
+    public boolean rewind(int to)
+    {
+        if (!contains(to))
+            return false;
+
+        ByteBuffer state = states[to % states.length];
+        state.rewind();
+        if (!engine.restore(state))
+            return false;
+
+        frame = to;
+        return true;
+    }
+
+    /**
+     * Know if state at the start of a frame is kept
+     * @param frame tested frame
+     * @return test result
+     */
+    public boolean contains(int frame)
+    {
+        return frame >= 0 && frame <= this.frame && frames[frame % states.length] == frame;
+    }
+
+    /**
+     * Get oldest frame that can be restored
+     * @return frame or -1 if no frame is kept
+     */
+    public int getOldestFrame()
+    {
+        int oldest = Math.max(frame - states.length + 1, 0);
+        while (oldest <= frame && !contains(oldest))
+        {
+            oldest++;
+        }
+        return (oldest > frame) ? -1 : oldest;
+    }
+
+    private void save(int frame, float dt)
+    {
+        int slot = frame % states.length;
+        int size = engine.getSnapshotSize();
+        if (states[slot].capacity() < size)
+            states[slot] = ByteBuffer.allocate(size * 2);
+
+        ByteBuffer state = states[slot];
+        state.clear();
+        engine.snapshot(state);
+        state.flip();
+
+        frames[slot] = frame;
+        dts[slot] = dt;
+    }
+
+    /**
+     * Forget all saved frames and restart frame count
+     * @param frame number of current frame
+     */
+    public void reset(int frame)
+    {
+        Arrays.fill(frames, -1);
+        this.frame = frame;
+    }
+
+    /**
+     * Get frame updated by next update
+     * @return frame
+     */
+    public int getFrame()
+    {
+        return frame;
+    }
+
+    /**
+     * Get number of frames kept
+     * @return capacity
+     */
+    public int getCapacity()
+    {
+        return states.length;
+    }
+
+    public Engine getEngine()
+    {
+        return engine;
+    }
+
+    public void setInputHandler(InputHandler inputHandler)
+    {
+        this.inputHandler = inputHandler;
+    }
+
+    public InputHandler getInputHandler()
+    {
+        return inputHandler;
+    }
+
+    /**
+     * Notify collision listener of events of frames simulated again by rollback
+     * Events of last step are kept by the engine in both cases
+     * @param notifyOnRollback true to notify listener, false by default
+     */
+    public void setNotifyOnRollback(boolean notifyOnRollback)
+    {
+        this.notifyOnRollback = notifyOnRollback;
+    }
+
+    public boolean isNotifyOnRollback()
+    {
+        return notifyOnRollback;
+    }
+}
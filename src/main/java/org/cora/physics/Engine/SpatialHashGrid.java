@@ -0,0 +1,597 @@
+package org.cora.physics.Engine;
+
+import org.cora.maths.sRectangle;
+import org.cora.physics.entities.Particle;
+
+import java.util.*;
+
+/**
+ * Uniform grid broad phase, cells are stored in a hash table keyed by integer cell coordinates
+ * Best with elements of similar size, cell size should be close to elements size
+ * Grid is rebuilt each step without allocation
+ */
+public class SpatialHashGrid implements BroadPhase, Cloneable
+{
+    private final static int DEFAULT_CAPACITY = 64;
+    private final static int MAX_CELLS_PER_ELEMENT = 16;
+    private final static int EMPTY = -1;
+
+    private float cellSize;
+    private float inverseCellSize;
+
+    // Handles
+    private Map<Particle, Integer> handles;
+    private Particle[] bodies;
+    private float[] minX, minY, maxX, maxY;
+    private int[] freeHandles;
+    private int freeCount;
+    private int handleCount;
+
+    // Cells hash table, a slot is used if its stamp is the current one
+    private long[] cellKeys;
+    private int[] cellHeads;
+    private int[] cellStamps;
+    private int stamp;
+
+    // Slots used since last rebuild
+    private int[] touchedSlots;
+    private int touchedCount;
+
+    // Cell entries, linked list per cell
+    private int[] entryBodies;
+    private int[] entryNext;
+    private int entryCount;
+
+    // Elements covering too many cells
+    private int[] oversized;
+    private int oversizedCount;
+
+    // Avoid duplicates in queries
+    private int[] queryMarks;
+    private int queryStamp;
+
+    public SpatialHashGrid(float cellSize)
+    {
+        this(cellSize, DEFAULT_CAPACITY);
+    }
+
+    public SpatialHashGrid(float cellSize, int capacity)
+    {
+        if (capacity < 1)
+            capacity = 1;
+
+        setCellSize(cellSize);
+
+        handles = new HashMap<Particle, Integer>();
+        bodies = new Particle[capacity];
+        minX = new float[capacity];
+        minY = new float[capacity];
+        maxX = new float[capacity];
+        maxY = new float[capacity];
+        freeHandles = new int[capacity];
+        freeCount = 0;
+        handleCount = 0;
+
+        int tableSize = tableSizeFor(capacity * 4);
+        cellKeys = new long[tableSize];
+        cellHeads = new int[tableSize];
+        cellStamps = new int[tableSize];
+        stamp = 1;
+        touchedSlots = new int[tableSize];
+        touchedCount = 0;
+
+        entryBodies = new int[capacity * 2];
+        entryNext = new int[capacity * 2];
+        entryCount = 0;
+
+        oversized = new int[capacity];
+        oversizedCount = 0;
+
+        queryMarks = new int[capacity];
+        queryStamp = 0;
+    }
+
+    @Override
+    public Object clone()
+    {
+        SpatialHashGrid g = null;
+
+        try
+        {
+            g = (SpatialHashGrid) super.clone();
+        }
+        catch (CloneNotSupportedException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+
+        g.handles = new HashMap<Particle, Integer>(handles);
+        g.bodies = bodies.clone();
+        g.copyArrays();
+        return g;
+    }
+
+    @Override
+    public Object clone(Map<Particle, Particle> change)
+    {
+        SpatialHashGrid g = null;
+
+        try
+        {
+            g = (SpatialHashGrid) super.clone();
+        }
+        catch (CloneNotSupportedException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+
+        g.handles = new HashMap<Particle, Integer>();
+        g.bodies = new Particle[bodies.length];
+        for (Map.Entry<Particle, Integer> entry : handles.entrySet())
+        {
+            Particle p = change.get(entry.getKey());
+            g.handles.put(p, entry.getValue());
+            g.bodies[entry.getValue()] = p;
+        }
+        g.copyArrays();
+        return g;
+    }
+
+    private void copyArrays()
+    {
+        minX = minX.clone();
+        minY = minY.clone();
+        maxX = maxX.clone();
+        maxY = maxY.clone();
+        freeHandles = freeHandles.clone();
+        cellKeys = cellKeys.clone();
+        cellHeads = cellHeads.clone();
+        cellStamps = cellStamps.clone();
+        touchedSlots = touchedSlots.clone();
+        entryBodies = entryBodies.clone();
+        entryNext = entryNext.clone();
+        oversized = oversized.clone();
+        queryMarks = queryMarks.clone();
+    }
+
+    /**
+     * Add an element to the structure
+     * It is put in cells with the next update
+     * @param particle added element
+     */
+    public void insert(Particle particle)
+    {
+        if (handles.containsKey(particle))
+            return;
+
+        int handle;
+        if (freeCount > 0)
+        {
+            handle = freeHandles[--freeCount];
+        }
+        else
+        {
+            ensureHandleCapacity(handleCount + 1);
+            handle = handleCount++;
+        }
+
+        handles.put(particle, handle);
+        bodies[handle] = particle;
+        setBound(handle, particle.getSavedSRectangleBound());
+    }
+
+    @Override
+    public void remove(Particle particle)
+    {
+        Integer handle = handles.remove(particle);
+        if (handle == null)
+            return;
+
+        // Entries still in cells are skipped until next update
+        bodies[handle] = null;
+        freeHandles[freeCount++] = handle;
+    }
+
+    @Override
+    public void clear()
+    {
+        handles.clear();
+        Arrays.fill(bodies, null);
+        handleCount = 0;
+        freeCount = 0;
+        entryCount = 0;
+        oversizedCount = 0;
+        touchedCount = 0;
+        nextStamp();
+    }
+
+    @Override
+    public void update(ArrayList<Particle> elements)
+    {
+        for (int i = 0; i < elements.size(); i++)
+        {
+            Particle p = elements.get(i);
+            Integer handle = handles.get(p);
+            if (handle == null)
+                insert(p);
+            else
+                setBound(handle, p.getSavedSRectangleBound());
+        }
+
+        rebuild();
+    }
+
+    private void rebuild()
+    {
+        nextStamp();
+        entryCount = 0;
+        oversizedCount = 0;
+        touchedCount = 0;
+
+        // Count entries to size the table once
+        int needed = 0;
+        for (int h = 0; h < handleCount; h++)
+        {
+            if (bodies[h] == null)
+                continue;
+
+            int cells = cellsCount(h);
+            if (cells <= MAX_CELLS_PER_ELEMENT)
+                needed += cells;
+        }
+
+        ensureEntryCapacity(needed);
+        if (cellKeys.length < needed * 2)
+        {
+            int tableSize = tableSizeFor(needed * 2);
+            cellKeys = new long[tableSize];
+            cellHeads = new int[tableSize];
+            cellStamps = new int[tableSize];
+            touchedSlots = new int[tableSize];
+        }
+
+        for (int h = 0; h < handleCount; h++)
+        {
+            if (bodies[h] == null)
+                continue;
+
+            if (cellsCount(h) > MAX_CELLS_PER_ELEMENT)
+            {
+                oversized[oversizedCount++] = h;
+                continue;
+            }
+
+            int x0 = cell(minX[h]);
+            int x1 = cell(maxX[h]);
+            int y0 = cell(minY[h]);
+            int y1 = cell(maxY[h]);
+
+            for (int x = x0; x <= x1; x++)
+            {
+                for (int y = y0; y <= y1; y++)
+                {
+                    int slot = findOrCreateSlot(key(x, y));
+                    entryBodies[entryCount] = h;
+                    entryNext[entryCount] = cellHeads[slot];
+                    cellHeads[slot] = entryCount;
+                    entryCount++;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void findPairs(PairSet pairs)
+    {
+        for (int i = 0; i < touchedCount; i++)
+        {
+            int slot = touchedSlots[i];
+            for (int e0 = cellHeads[slot]; e0 != EMPTY; e0 = entryNext[e0])
+            {
+                for (int e1 = entryNext[e0]; e1 != EMPTY; e1 = entryNext[e1])
+                {
+                    addPairIfOverlap(entryBodies[e0], entryBodies[e1], pairs);
+                }
+            }
+        }
+
+        // Oversized elements are tested once against each other
+        for (int i = 0; i < oversizedCount; i++)
+        {
+            for (int j = i + 1; j < oversizedCount; j++)
+            {
+                addPairIfOverlap(oversized[i], oversized[j], pairs);
+            }
+            findOversizedPairs(oversized[i], pairs);
+        }
+    }
+
+    /**
+     * Test an oversized element against elements of the cells it covers
+     * Cells are looked up one by one or used cells are filtered, whichever is fewer
+     * @param h handle of oversized element
+     * @param pairs found pairs
+     */
+    private void findOversizedPairs(int h, PairSet pairs)
+    {
+        int mark = nextQueryStamp();
+        queryMarks[h] = mark;
+
+        int x0 = cell(minX[h]);
+        int x1 = cell(maxX[h]);
+        int y0 = cell(minY[h]);
+        int y1 = cell(maxY[h]);
+
+        if (cellsCount(h) <= touchedCount)
+        {
+            for (int x = x0; x <= x1; x++)
+            {
+                for (int y = y0; y <= y1; y++)
+                {
+                    int slot = findSlot(key(x, y));
+                    if (slot != EMPTY)
+                        addCellPairs(h, slot, mark, pairs);
+                }
+            }
+            return;
+        }
+
+        for (int i = 0; i < touchedCount; i++)
+        {
+            int slot = touchedSlots[i];
+            long key = cellKeys[slot];
+            int x = (int) (key >> 32);
+            int y = (int) key;
+            if (x >= x0 && x <= x1 && y >= y0 && y <= y1)
+                addCellPairs(h, slot, mark, pairs);
+        }
+    }
+
+    private void addCellPairs(int h, int slot, int mark, PairSet pairs)
+    {
+        for (int e = cellHeads[slot]; e != EMPTY; e = entryNext[e])
+        {
+            int other = entryBodies[e];
+            if (queryMarks[other] == mark)
+                continue;
+            queryMarks[other] = mark;
+            addPairIfOverlap(h, other, pairs);
+        }
+    }
+
+    private void addPairIfOverlap(int a, int b, PairSet pairs)
+    {
+        if (a == b || bodies[a] == null || bodies[b] == null)
+            return;
+
+        if (minX[a] <= maxX[b] && maxX[a] >= minX[b] && minY[a] <= maxY[b] && maxY[a] >= minY[b]
+                && bodies[a].shouldCollide(bodies[b]))
+            pairs.add(a, b, bodies[a], bodies[b]);
+    }
+
+    @Override
+    public int getId(Particle particle)
+    {
+        Integer id = handles.get(particle);
+        return (id == null) ? -1 : id;
+    }
+
+    @Override
+    public void retrieve(Particle particle, Collection<Particle> resParticles)
+    {
+        Integer handle = handles.get(particle);
+        int self = (handle == null) ? EMPTY : handle;
+        query(particle.getSavedSRectangleBound(), self, resParticles);
+    }
+
+    @Override
+    public void retrieve(sRectangle rect, Collection<Particle> resParticles)
+    {
+        query(rect, EMPTY, resParticles);
+    }
+
+    private void query(sRectangle rect, int self, Collection<Particle> resParticles)
+    {
+        float rMinX = rect.getMinX();
+        float rMinY = rect.getMinY();
+        float rMaxX = rect.getMaxX();
+        float rMaxY = rect.getMaxY();
+        int mark = nextQueryStamp();
+
+        if (self != EMPTY)
+            queryMarks[self] = mark;
+
+        int x0 = cell(rMinX);
+        int x1 = cell(rMaxX);
+        int y0 = cell(rMinY);
+        int y1 = cell(rMaxY);
+
+        if ((long) (x1 - x0 + 1) * (y1 - y0 + 1) > entryCount)
+        {
+            // Query box larger than the world content, test all elements
+            for (int h = 0; h < handleCount; h++)
+            {
+                addIfOverlap(h, mark, rMinX, rMinY, rMaxX, rMaxY, resParticles);
+            }
+            return;
+        }
+
+        for (int x = x0; x <= x1; x++)
+        {
+            for (int y = y0; y <= y1; y++)
+            {
+                int slot = findSlot(key(x, y));
+                if (slot == EMPTY)
+                    continue;
+
+                for (int e = cellHeads[slot]; e != EMPTY; e = entryNext[e])
+                {
+                    addIfOverlap(entryBodies[e], mark, rMinX, rMinY, rMaxX, rMaxY, resParticles);
+                }
+            }
+        }
+
+        for (int i = 0; i < oversizedCount; i++)
+        {
+            addIfOverlap(oversized[i], mark, rMinX, rMinY, rMaxX, rMaxY, resParticles);
+        }
+    }
+
+    private void addIfOverlap(int h, int mark, float rMinX, float rMinY, float rMaxX, float rMaxY,
+                              Collection<Particle> resParticles)
+    {
+        if (queryMarks[h] == mark || bodies[h] == null)
+            return;
+        queryMarks[h] = mark;
+
+        if (minX[h] <= rMaxX && maxX[h] >= rMinX && minY[h] <= rMaxY && maxY[h] >= rMinY)
+            resParticles.add(bodies[h]);
+    }
+
+    /**
+     * Get size of a cell
+     * @return cell size
+     */
+    public float getCellSize()
+    {
+        return cellSize;
+    }
+
+    /**
+     * Change size of a cell, used with the next update
+     * @param cellSize new cell size, should be close to elements size
+     */
+    public void setCellSize(float cellSize)
+    {
+        if (cellSize <= 0)
+            throw new IllegalArgumentException("Cell size must be positive");
+
+        this.cellSize = cellSize;
+        this.inverseCellSize = 1.0f / cellSize;
+    }
+
+    // Tools
+    private int cell(float v)
+    {
+        return (int) Math.floor(v * inverseCellSize);
+    }
+
+    private int cellsCount(int h)
+    {
+        long count = (long) (cell(maxX[h]) - cell(minX[h]) + 1) * (cell(maxY[h]) - cell(minY[h]) + 1);
+        return (count > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) count;
+    }
+
+    private static long key(int x, int y)
+    {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    private static int hash(long key)
+    {
+        key ^= (key >>> 33);
+        key *= 0xff51afd7ed558ccdL;
+        key ^= (key >>> 33);
+        return (int) key;
+    }
+
+    private int findSlot(long key)
+    {
+        int mask = cellKeys.length - 1;
+        int slot = hash(key) & mask;
+
+        while (cellStamps[slot] == stamp)
+        {
+            if (cellKeys[slot] == key)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    private int findOrCreateSlot(long key)
+    {
+        int mask = cellKeys.length - 1;
+        int slot = hash(key) & mask;
+
+        while (cellStamps[slot] == stamp)
+        {
+            if (cellKeys[slot] == key)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+
+        cellStamps[slot] = stamp;
+        cellKeys[slot] = key;
+        cellHeads[slot] = EMPTY;
+        touchedSlots[touchedCount++] = slot;
+        return slot;
+    }
+
+    private void nextStamp()
+    {
+        stamp++;
+        if (stamp == 0)
+        {
+            Arrays.fill(cellStamps, 0);
+            stamp = 1;
+        }
+    }
+
+    private int nextQueryStamp()
+    {
+        queryStamp++;
+        if (queryStamp == 0)
+        {
+            Arrays.fill(queryMarks, 0);
+            queryStamp = 1;
+        }
+        return queryStamp;
+    }
+
+    private static int tableSizeFor(int n)
+    {
+        int size = 16;
+        while (size < n)
+        {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private void setBound(int handle, sRectangle bound)
+    {
+        minX[handle] = bound.getMinX();
+        minY[handle] = bound.getMinY();
+        maxX[handle] = bound.getMaxX();
+        maxY[handle] = bound.getMaxY();
+    }
+
+    private void ensureHandleCapacity(int capacity)
+    {
+        if (capacity <= bodies.length)
+            return;
+
+        int newCapacity = Math.max(capacity, bodies.length * 2);
+        bodies = Arrays.copyOf(bodies, newCapacity);
+        minX = Arrays.copyOf(minX, newCapacity);
+        minY = Arrays.copyOf(minY, newCapacity);
+        maxX = Arrays.copyOf(maxX, newCapacity);
+        maxY = Arrays.copyOf(maxY, newCapacity);
+        freeHandles = Arrays.copyOf(freeHandles, newCapacity);
+        oversized = Arrays.copyOf(oversized, newCapacity);
+        queryMarks = Arrays.copyOf(queryMarks, newCapacity);
+    }
+
+    private void ensureEntryCapacity(int capacity)
+    {
+        if (capacity <= entryBodies.length)
+            return;
+
+        int newCapacity = Math.max(capacity, entryBodies.length * 2);
+        entryBodies = new int[newCapacity];
+        entryNext = new int[newCapacity];
+    }
+}
@@ -0,0 +1,533 @@
+package org.cora.physics.Engine;
+
+import org.cora.maths.sRectangle;
+import org.cora.physics.entities.Particle;
+
+import java.util.*;
+
+/**
+ * Sort and sweep broad phase
+ * Endpoints on x axis stay sorted between steps, insertion sort is near O(n) on coherent scenes
+ * Endpoints are sorted from scratch when many elements have been added since last update
+ */
+public class SweepAndPrune implements BroadPhase, Cloneable
+{
+    private final static int DEFAULT_CAPACITY = 64;
+
+    // Part of endpoints added since last update above which endpoints are fully sorted
+    private final static int BULK_SORT_DIVISOR = 8;
+
+    // Handles
+    private Map<Particle, Integer> handles;
+    private Particle[] bodies;
+    private float[] minX, minY, maxX, maxY;
+    private int[] freeHandles;
+    private int freeCount;
+    private int handleCount;
+
+    // Handles removed since last update, their endpoints are removed by next update
+    private int[] removedHandles;
+    private int removedCount;
+    private boolean[] isRemoved;
+
+    // Endpoints sorted on x axis, data is (handle << 1) | isMax
+    private float[] endValues;
+    private int[] endData;
+    private int endCount;
+    private int addedCount;
+    private long[] sortKeys;
+
+    // Sweep
+    private int[] active;
+    private int[] activePos;
+    private int activeCount;
+
+    // Pairs found by last sweep and adjacency per handle
+    private int[] pairHandles;
+    private int pairCount;
+    private int[] adjStart;
+    private int[] adj;
+    private boolean pairsValid;
+
+    public SweepAndPrune()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SweepAndPrune(int capacity)
+    {
+        if (capacity < 1)
+            capacity = 1;
+
+        handles = new HashMap<Particle, Integer>();
+        bodies = new Particle[capacity];
+        minX = new float[capacity];
+        minY = new float[capacity];
+        maxX = new float[capacity];
+        maxY = new float[capacity];
+        freeHandles = new int[capacity];
+        freeCount = 0;
+        handleCount = 0;
+        removedHandles = new int[capacity];
+        removedCount = 0;
+        isRemoved = new boolean[capacity];
+
+        endValues = new float[capacity * 2];
+        endData = new int[capacity * 2];
+        endCount = 0;
+        addedCount = 0;
+        sortKeys = new long[0];
+
+        active = new int[capacity];
+        activePos = new int[capacity];
+        activeCount = 0;
+
+        pairHandles = new int[capacity * 2];
+        pairCount = 0;
+        adjStart = new int[capacity + 1];
+        adj = new int[capacity * 2];
+        pairsValid = false;
+    }
+
+    @Override
+    public Object clone()
+    {
+        SweepAndPrune s = null;
+
+        try
+        {
+            s = (SweepAndPrune) super.clone();
+        }
+        catch (CloneNotSupportedException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+
+        s.handles = new HashMap<Particle, Integer>(handles);
+        s.bodies = bodies.clone();
+        s.copyArrays();
+        return s;
+    }
+
+    @Override
+    public Object clone(Map<Particle, Particle> change)
+    {
+        SweepAndPrune s = null;
+
+        try
+        {
+            s = (SweepAndPrune) super.clone();
+        }
+        catch (CloneNotSupportedException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+
+        s.handles = new HashMap<Particle, Integer>();
+        s.bodies = new Particle[bodies.length];
+        for (Map.Entry<Particle, Integer> entry : handles.entrySet())
+        {
+            Particle p = change.get(entry.getKey());
+            s.handles.put(p, entry.getValue());
+            s.bodies[entry.getValue()] = p;
+        }
+        s.copyArrays();
+        return s;
+    }
+
+    private void copyArrays()
+    {
+        minX = minX.clone();
+        minY = minY.clone();
+        maxX = maxX.clone();
+        maxY = maxY.clone();
+        freeHandles = freeHandles.clone();
+        removedHandles = removedHandles.clone();
+        isRemoved = isRemoved.clone();
+        sortKeys = new long[0];
+        endValues = endValues.clone();
+        endData = endData.clone();
+        active = active.clone();
+        activePos = activePos.clone();
+        pairHandles = pairHandles.clone();
+        adjStart = adjStart.clone();
+        adj = adj.clone();
+    }
+
+    /**
+     * Add an element to the structure
+     * Its saved sRectangle bound must be computed
+     * @param particle added element
+     */
+    public void insert(Particle particle)
+    {
+        if (handles.containsKey(particle))
+            return;
+
+        int handle;
+        if (freeCount > 0)
+        {
+            handle = freeHandles[--freeCount];
+        }
+        else
+        {
+            ensureHandleCapacity(handleCount + 1);
+            handle = handleCount++;
+        }
+
+        handles.put(particle, handle);
+        bodies[handle] = particle;
+        setBound(handle, particle.getSavedSRectangleBound());
+
+        ensureEndCapacity(endCount + 2);
+        endValues[endCount] = minX[handle];
+        endData[endCount] = handle << 1;
+        endCount++;
+        endValues[endCount] = maxX[handle];
+        endData[endCount] = (handle << 1) | 1;
+        endCount++;
+        addedCount += 2;
+
+        // New endpoints are sorted with the next update
+        pairsValid = false;
+    }
+
+    @Override
+    public void remove(Particle particle)
+    {
+        Integer h = handles.remove(particle);
+        if (h == null)
+            return;
+
+        // Endpoints are removed and handle is freed by next update
+        int handle = h;
+        bodies[handle] = null;
+        isRemoved[handle] = true;
+        removedHandles[removedCount++] = handle;
+        pairCount = 0;
+        pairsValid = false;
+    }
+
+    /**
+     * Remove endpoints of removed handles in one pass and free the handles
+     */
+    private void removeEndpoints()
+    {
+        if (removedCount == 0)
+            return;
+
+        int j = 0;
+        for (int i = 0; i < endCount; i++)
+        {
+            if (!isRemoved[endData[i] >> 1])
+            {
+                endValues[j] = endValues[i];
+                endData[j] = endData[i];
+                j++;
+            }
+        }
+        endCount = j;
+
+        for (int i = 0; i < removedCount; i++)
+        {
+            isRemoved[removedHandles[i]] = false;
+            freeHandles[freeCount++] = removedHandles[i];
+        }
+        removedCount = 0;
+    }
+
+    @Override
+    public void clear()
+    {
+        handles.clear();
+        Arrays.fill(bodies, null);
+        handleCount = 0;
+        freeCount = 0;
+        Arrays.fill(isRemoved, false);
+        removedCount = 0;
+        endCount = 0;
+        addedCount = 0;
+        activeCount = 0;
+        pairCount = 0;
+        pairsValid = false;
+    }
+
+    @Override
+    public void update(ArrayList<Particle> elements)
+    {
+        removeEndpoints();
+        for (int i = 0; i < elements.size(); i++)
+        {
+            Particle p = elements.get(i);
+            Integer handle = handles.get(p);
+            if (handle == null)
+                insert(p);
+            else
+                setBound(handle, p.getSavedSRectangleBound());
+        }
+
+        sortEndpoints();
+        sweep();
+        buildAdjacency();
+    }
+
+    /**
+     * Refresh endpoints values and keep them sorted
+     * Insertion sort, almost linear when elements move a little
+     * Full sort when many endpoints have been added, insertion sort would be quadratic
+     */
+    private void sortEndpoints()
+    {
+        for (int i = 0; i < endCount; i++)
+        {
+            int handle = endData[i] >> 1;
+            endValues[i] = ((endData[i] & 1) == 0) ? minX[handle] : maxX[handle];
+        }
+
+        boolean bulk = addedCount * BULK_SORT_DIVISOR > endCount;
+        addedCount = 0;
+        if (bulk)
+        {
+            sortAllEndpoints();
+            return;
+        }
+
+        for (int i = 1; i < endCount; i++)
+        {
+            float value = endValues[i];
+            int data = endData[i];
+            int j = i - 1;
+
+            while (j >= 0 && isBefore(value, data, endValues[j], endData[j]))
+            {
+                endValues[j + 1] = endValues[j];
+                endData[j + 1] = endData[j];
+                j--;
+            }
+            endValues[j + 1] = value;
+            endData[j + 1] = data;
+        }
+    }
+
+    /**
+     * Sort endpoints packed in keys, value in high bits then max flag then handle
+     * Same order as isBefore, min endpoints come first on equal values
+     */
+    private void sortAllEndpoints()
+    {
+        if (sortKeys.length < endCount)
+            sortKeys = new long[endValues.length];
+
+        for (int i = 0; i < endCount; i++)
+        {
+            int bits = Float.floatToIntBits(endValues[i]);
+            // Signed int order of floats
+            bits ^= (bits >> 31) & 0x7FFFFFFF;
+            int low = ((endData[i] & 1) << 31) | (endData[i] >>> 1);
+            sortKeys[i] = ((long) bits << 32) | (low & 0xFFFFFFFFL);
+        }
+
+        Arrays.sort(sortKeys, 0, endCount);
+
+        for (int i = 0; i < endCount; i++)
+        {
+            int low = (int) sortKeys[i];
+            int handle = low & 0x7FFFFFFF;
+            int isMax = low >>> 31;
+            endData[i] = (handle << 1) | isMax;
+            endValues[i] = (isMax == 0) ? minX[handle] : maxX[handle];
+        }
+    }
+
+    private static boolean isBefore(float value, int data, float otherValue, int otherData)
+    {
+        // On equal values, min endpoints come first so touching boxes overlap
+        return value < otherValue || (value == otherValue && (data & 1) == 0 && (otherData & 1) == 1);
+    }
+
+    private void sweep()
+    {
+        pairCount = 0;
+        activeCount = 0;
+
+        for (int i = 0; i < endCount; i++)
+        {
+            int handle = endData[i] >> 1;
+
+            if ((endData[i] & 1) == 0)
+            {
+                for (int a = 0; a < activeCount; a++)
+                {
+                    int other = active[a];
+                    if (minY[handle] <= maxY[other] && minY[other] <= maxY[handle])
+                    {
+                        addPair(handle, other);
+                    }
+                }
+                activePos[handle] = activeCount;
+                active[activeCount++] = handle;
+            }
+            else
+            {
+                int pos = activePos[handle];
+                int last = active[--activeCount];
+                active[pos] = last;
+                activePos[last] = pos;
+            }
+        }
+    }
+
+    private void addPair(int a, int b)
+    {
+        if (pairCount * 2 + 2 > pairHandles.length)
+            pairHandles = Arrays.copyOf(pairHandles, pairHandles.length * 2);
+
+        pairHandles[pairCount * 2] = a;
+        pairHandles[pairCount * 2 + 1] = b;
+        pairCount++;
+    }
+
+    private void buildAdjacency()
+    {
+        Arrays.fill(adjStart, 0, handleCount + 1, 0);
+
+        for (int i = 0; i < pairCount; i++)
+        {
+            adjStart[pairHandles[i * 2] + 1]++;
+            adjStart[pairHandles[i * 2 + 1] + 1]++;
+        }
+
+        for (int i = 0; i < handleCount; i++)
+        {
+            adjStart[i + 1] += adjStart[i];
+        }
+
+        if (adj.length < pairCount * 2)
+            adj = new int[pairCount * 4];
+
+        // Use active as write cursor, it is not needed after sweep
+        for (int i = 0; i < handleCount; i++)
+        {
+            active[i] = adjStart[i];
+        }
+
+        for (int i = 0; i < pairCount; i++)
+        {
+            int a = pairHandles[i * 2];
+            int b = pairHandles[i * 2 + 1];
+            adj[active[a]++] = b;
+            adj[active[b]++] = a;
+        }
+        pairsValid = true;
+    }
+
+    @Override
+    public void findPairs(PairSet pairs)
+    {
+        if (!pairsValid)
+            return;
+
+        for (int i = 0; i < pairCount; i++)
+        {
+            int a = pairHandles[i * 2];
+            int b = pairHandles[i * 2 + 1];
+            if (bodies[a].shouldCollide(bodies[b]))
+                pairs.add(a, b, bodies[a], bodies[b]);
+        }
+    }
+
+    @Override
+    public int getId(Particle particle)
+    {
+        Integer id = handles.get(particle);
+        return (id == null) ? -1 : id;
+    }
+
+    @Override
+    public void retrieve(Particle particle, Collection<Particle> resParticles)
+    {
+        Integer h = handles.get(particle);
+        if (h == null || !pairsValid)
+        {
+            retrieve(particle.getSavedSRectangleBound(), resParticles);
+            return;
+        }
+
+        int handle = h;
+        for (int i = adjStart[handle]; i < adjStart[handle + 1]; i++)
+        {
+            resParticles.add(bodies[adj[i]]);
+        }
+    }
+
+    @Override
+    public void retrieve(sRectangle rect, Collection<Particle> resParticles)
+    {
+        float rMinX = rect.getMinX();
+        float rMaxX = rect.getMaxX();
+        float rMinY = rect.getMinY();
+        float rMaxY = rect.getMaxY();
+
+        for (int i = 0; i < endCount; i++)
+        {
+            if (endValues[i] > rMaxX)
+                break;
+            if ((endData[i] & 1) == 1)
+                continue;
+
+            int handle = endData[i] >> 1;
+            if (bodies[handle] == null)
+                continue;
+            if (maxX[handle] >= rMinX && minY[handle] <= rMaxY && maxY[handle] >= rMinY)
+                resParticles.add(bodies[handle]);
+        }
+    }
+
+    /**
+     * Get number of overlapping pairs found during last update
+     * @return number of pairs
+     */
+    public int getPairCount()
+    {
+        return pairCount;
+    }
+
+    private void setBound(int handle, sRectangle bound)
+    {
+        minX[handle] = bound.getMinX();
+        minY[handle] = bound.getMinY();
+        maxX[handle] = bound.getMaxX();
+        maxY[handle] = bound.getMaxY();
+    }
+
+    private void ensureHandleCapacity(int capacity)
+    {
+        if (capacity <= bodies.length)
+            return;
+
+        int newCapacity = Math.max(capacity, bodies.length * 2);
+        bodies = Arrays.copyOf(bodies, newCapacity);
+        minX = Arrays.copyOf(minX, newCapacity);
+        minY = Arrays.copyOf(minY, newCapacity);
+        maxX = Arrays.copyOf(maxX, newCapacity);
+        maxY = Arrays.copyOf(maxY, newCapacity);
+        freeHandles = Arrays.copyOf(freeHandles, newCapacity);
+        removedHandles = Arrays.copyOf(removedHandles, newCapacity);
+        isRemoved = Arrays.copyOf(isRemoved, newCapacity);
+        active = Arrays.copyOf(active, newCapacity);
+        activePos = Arrays.copyOf(activePos, newCapacity);
+        adjStart = Arrays.copyOf(adjStart, newCapacity + 1);
+    }
+
+    private void ensureEndCapacity(int capacity)
+    {
+        if (capacity <= endValues.length)
+            return;
+
+        int newCapacity = Math.max(capacity, endValues.length * 2);
+        endValues = Arrays.copyOf(endValues, newCapacity);
+        endData = Arrays.copyOf(endData, newCapacity);
+    }
+}
@@ -0,0 +1,315 @@
+package org.cora.physics.Engine;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Update many independent engines each tick on a work stealing pool
+ * Each engine is updated by one thread at a time, engines share no state
+ * Each engine has a tick budget, engines exceeding it are reported after the tick
+ * A scheduler created without pool owns its pool, shutdown must be called once it is not used anymore
+ */
+public class WorldScheduler
+{
+    /**
+     * Notified on the ticking thread when an engine update exceeds its budget
+     */
+    public interface OverrunListener
+    {
+        /**
+         * @param engine engine that exceeded its budget
+         * @param tickNanos time spent updating the engine
+         * @param budgetNanos budget of the engine
+         */
+        void onOverrun(Engine engine, long tickNanos, long budgetNanos);
+    }
+
+    private static class World
+    {
+        private final Engine engine;
+        private long budgetNanos;
+        private long lastTickNanos;
+        private long overrunCount;
+        private boolean isOverrun;
+
+        public World(Engine engine, long budgetNanos)
+        {
+            this.engine = engine;
+            this.budgetNanos = budgetNanos;
+            lastTickNanos = 0;
+            overrunCount = 0;
+            isOverrun = false;
+        }
+    }
+
+    private final static int MIN_WORLDS = 1;
+
+    private final ForkJoinPool pool;
+    private final boolean ownsPool;
+    private ArrayList<World> worlds;
+    private long defaultBudgetNanos;
+    private OverrunListener overrunListener;
+    private long lastTickNanos;
+
+    /**
+     * Create a scheduler with its own pool, released by shutdown
+     */
+    public WorldScheduler()
+    {
+        this(new ForkJoinPool(), 0, true);
+    }
+
+    /**
+     * @param pool pool used to update engines, not shut down by the scheduler
+     */
+    public WorldScheduler(ForkJoinPool pool)
+    {
+        this(pool, 0);
+    }
+
+    /**
+     * @param pool pool used to update engines, not shut down by the scheduler
+     * @param defaultBudgetNanos budget of added engines, 0 for no budget
+     */
+    public WorldScheduler(ForkJoinPool pool, long defaultBudgetNanos)
+    {
+        this(pool, defaultBudgetNanos, false);
+    }
+
+    private WorldScheduler(ForkJoinPool pool, long defaultBudgetNanos, boolean ownsPool)
+    {
+        if (pool == null)
+            throw new IllegalArgumentException("Pool must not be null");
+
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+        this.defaultBudgetNanos = defaultBudgetNanos;
+        worlds = new ArrayList<World>();
+        overrunListener = null;
+        lastTickNanos = 0;
+    }
+
+    /**
+     * Add an engine with default budget
+     * @param engine engine updated each tick
+     */
+    public void add(Engine engine)
+    {
+        add(engine, defaultBudgetNanos);
+    }
+
+    /**
+     * Add an engine
+     * An engine must not be updated elsewhere while scheduled
+     * @param engine engine updated each tick
+     * @param budgetNanos max time of one update, 0 for no budget
+     */
+    public void add(Engine engine, long budgetNanos)
+    {
+        if (find(engine) != null)
+            return;
+
+        worlds.add(new World(engine, budgetNanos));
+    }
+
+    public void remove(Engine engine)
+    {
+        for (int i = 0; i < worlds.size(); i++)
+        {
+            if (worlds.get(i).engine == engine)
+            {
+                worlds.remove(i);
+                return;
+            }
+        }
+    }
+
+    public void clear()
+    {
+        worlds.clear();
+    }
+
+    public int size()
+    {
+        return worlds.size();
+    }
+
+    public Engine get(int i)
+    {
+        return worlds.get(i).engine;
+    }
+
+    /**
+     * Update all engines, returns once all of them are updated
+     * Overruns are reported on calling thread, in engines order
+     * @param dt time since last tick
+     */
+    public void tick(float dt)
+    {
+        long start = System.nanoTime();
+        if (worlds.size() > MIN_WORLDS)
+            pool.invoke(new TickTask(0, worlds.size(), dt));
+        else if (worlds.size() == MIN_WORLDS)
+            tick(worlds.get(0), dt);
+        lastTickNanos = System.nanoTime() - start;
+
+        for (int i = 0; i < worlds.size(); i++)
+        {
+            World world = worlds.get(i);
+            if (world.isOverrun && overrunListener != null)
+                overrunListener.onOverrun(world.engine, world.lastTickNanos, world.budgetNanos);
+        }
+    }
+
+    private static void tick(World world, float dt)
+    {
+        long start = System.nanoTime();
+        world.engine.update(dt);
+        world.lastTickNanos = System.nanoTime() - start;
+
+        world.isOverrun = world.budgetNanos > 0 && world.lastTickNanos > world.budgetNanos;
+        if (world.isOverrun)
+            world.overrunCount++;
+    }
+
+    /**
+     * Update a range of engines, split between pool threads
+     */
+    private class TickTask extends RecursiveAction
+    {
+        private final int start, end;
+        private final float dt;
+
+        public TickTask(int start, int end, float dt)
+        {
+            this.start = start;
+            this.end = end;
+            this.dt = dt;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (end - start <= MIN_WORLDS)
+            {
+                for (int i = start; i < end; i++)
+                {
+                    tick(worlds.get(i), dt);
+                }
+                return;
+            }
+
+            int middle = (start + end) >>> 1;
+            invokeAll(new TickTask(start, middle, dt), new TickTask(middle, end, dt));
+        }
+    }
+
+    /**
+     * Change budget of an engine
+     * @param engine scheduled engine
+     * @param budgetNanos max time of one update, 0 for no budget
+     */
+    public void setBudget(Engine engine, long budgetNanos)
+    {
+        World world = find(engine);
+        if (world != null)
+            world.budgetNanos = budgetNanos;
+    }
+
+    /**
+     * Get budget of an engine
+     * @param engine scheduled engine
+     * @return budget in nanoseconds, 0 for no budget or -1 if engine is not scheduled
+     */
+    public long getBudget(Engine engine)
+    {
+        World world = find(engine);
+        return (world == null) ? -1 : world.budgetNanos;
+    }
+
+    /**
+     * Get time spent updating an engine during last tick
+     * @param engine scheduled engine
+     * @return time in nanoseconds or -1 if engine is not scheduled
+     */
+    public long getLastTickNanos(Engine engine)
+    {
+        World world = find(engine);
+        return (world == null) ? -1 : world.lastTickNanos;
+    }
+
+    /**
+     * Get number of ticks where an engine exceeded its budget
+     * @param engine scheduled engine
+     * @return number of overruns or -1 if engine is not scheduled
+     */
+    public long getOverrunCount(Engine engine)
+    {
+        World world = find(engine);
+        return (world == null) ? -1 : world.overrunCount;
+    }
+
+    /**
+     * Get time spent updating all engines during last tick
+     * @return time in nanoseconds
+     */
+    public long getLastTickNanos()
+    {
+        return lastTickNanos;
+    }
+
+    public void setDefaultBudget(long defaultBudgetNanos)
+    {
+        this.defaultBudgetNanos = defaultBudgetNanos;
+    }
+
+    public long getDefaultBudget()
+    {
+        return defaultBudgetNanos;
+    }
+
+    public void setOverrunListener(OverrunListener overrunListener)
+    {
+        this.overrunListener = overrunListener;
+    }
+
+    public OverrunListener getOverrunListener()
+    {
+        return overrunListener;
+    }
+
+    public ForkJoinPool getPool()
+    {
+        return pool;
+    }
+
+    /**
+     * Shut down the pool if it was created by the scheduler, a given pool is left running
+     * The scheduler can not tick anymore once its own pool is shut down
+     */
+    public void shutdown()
+    {
+        if (ownsPool)
+            pool.shutdown();
+    }
+
+    /**
+     * Know if the pool was created by the scheduler and is shut down by shutdown
+     * @return test result
+     */
+    public boolean ownsPool()
+    {
+        return ownsPool;
+    }
+
+    private World find(Engine engine)
+    {
+        for (int i = 0; i < worlds.size(); i++)
+        {
+            if (worlds.get(i).engine == engine)
+                return worlds.get(i);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,319 @@
+package org.cora.physics.collision;
+
+import org.cora.physics.Engine.PairSet;
+import org.cora.physics.entities.Particle;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Begin, persist and end events of colliding pairs
+ * Colliding pairs of a step are compared with pairs of last step, pairs are identified by broad phase pair key
+ * Events of last step are kept in a reusable buffer and sent to a listener
+ */
+public class CollisionEvents
+{
+    public final static int BEGIN = 0;
+    public final static int PERSIST = 1;
+    public final static int END = 2;
+
+    /**
+     * Notified on the updating thread once contacts of a step are resolved
+     */
+    public interface CollisionListener
+    {
+        /**
+         * @param A element with the lowest broad phase id
+         * @param B element with the highest broad phase id
+         * @param key pair key
+         */
+        void onCollisionBegin(Particle A, Particle B, long key);
+
+        /**
+         * @param A element with the lowest broad phase id
+         * @param B element with the highest broad phase id
+         * @param key pair key
+         */
+        void onCollisionPersist(Particle A, Particle B, long key);
+
+        /**
+         * @param A element with the lowest broad phase id
+         * @param B element with the highest broad phase id
+         * @param key pair key
+         */
+        void onCollisionEnd(Particle A, Particle B, long key);
+    }
+
+    private PairSet current;
+    private PairSet previous;
+
+    private int[] types;
+    private long[] keys;
+    private Particle[] eventA, eventB;
+    private int size;
+
+    private CollisionListener listener;
+
+    public CollisionEvents()
+    {
+        current = new PairSet();
+        previous = new PairSet();
+        types = new int[64];
+        keys = new long[64];
+        eventA = new Particle[64];
+        eventB = new Particle[64];
+        size = 0;
+        listener = null;
+    }
+
+    /**
+     * Start a new step, pairs of last step become previous pairs
+     */
+    public void begin()
+    {
+        PairSet temp = previous;
+        previous = current;
+        current = temp;
+        current.clear();
+    }
+
+    /**
+     * Add a colliding pair of current step
+     * @param key pair key
+     * @param A element with the lowest id
+     * @param B element with the highest id
+     */
+    public void add(long key, Particle A, Particle B)
+    {
+        current.add(PairSet.getIdA(key), PairSet.getIdB(key), A, B);
+    }
+
+    /**
+     * End current step, compare its pairs with pairs of last step and send events
+     * A pair found again with other elements, after an id has been reused, ends and begins again
+     */
+    public void end()
+    {
+        current.sort();
+        Arrays.fill(eventA, 0, size, null);
+        Arrays.fill(eventB, 0, size, null);
+        size = 0;
+
+        int i = 0;
+        int j = 0;
+        while (i < current.size() || j < previous.size())
+        {
+            long key = (i < current.size()) ? current.getKey(i) : Long.MAX_VALUE;
+            long lastKey = (j < previous.size()) ? previous.getKey(j) : Long.MAX_VALUE;
+
+            if (j < previous.size() && (i == current.size() || lastKey < key))
+            {
+                addEvent(END, lastKey, previous.getA(j), previous.getB(j));
+                j++;
+            }
+            else if (i < current.size() && (j == previous.size() || key < lastKey))
+            {
+                addEvent(BEGIN, key, current.getA(i), current.getB(i));
+                i++;
+            }
+            else
+            {
+                if (current.getA(i) == previous.getA(j) && current.getB(i) == previous.getB(j))
+                {
+                    addEvent(PERSIST, key, current.getA(i), current.getB(i));
+                }
+                else
+                {
+                    addEvent(END, lastKey, previous.getA(j), previous.getB(j));
+                    addEvent(BEGIN, key, current.getA(i), current.getB(i));
+                }
+                i++;
+                j++;
+            }
+        }
+
+        if (listener != null)
+            notifyListener();
+    }
+
+    /**
+     * Forget colliding pairs, used when pair keys change
+     * No end event is sent for forgotten pairs
+     */
+    public void clear()
+    {
+        current.clear();
+        previous.clear();
+        Arrays.fill(eventA, 0, size, null);
+        Arrays.fill(eventB, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Sort colliding pairs of last step by key, needed once pairs have been added outside of a step
+     * Pairs are compared with pairs of next step in key order
+     */
+    void sortPairs()
+    {
+        current.sort();
+    }
+
+    /**
+     * Forget colliding pairs of an element, used when it is removed
+     * No end event is sent for forgotten pairs, a pair found again later with a reused id begins again
+     * @param p removed element
+     */
+    public void remove(Particle p)
+    {
+        previous.clear();
+        for (int i = 0; i < current.size(); i++)
+        {
+            if (current.getA(i) != p && current.getB(i) != p)
+            {
+                long key = current.getKey(i);
+                previous.add(PairSet.getIdA(key), PairSet.getIdB(key), current.getA(i), current.getB(i));
+            }
+        }
+
+        PairSet temp = current;
+        current = previous;
+        previous = temp;
+        previous.clear();
+    }
+
+    /**
+     * Copy colliding pairs of last step
+     * @param events copied events
+     * @param change map used to replace elements, null to keep them
+     */
+    public void set(CollisionEvents events, Map<Particle, Particle> change)
+    {
+        clear();
+        for (int i = 0; i < events.getPairCount(); i++)
+        {
+            Particle A = events.getPairA(i);
+            Particle B = events.getPairB(i);
+            if (change != null)
+            {
+                A = change.get(A);
+                B = change.get(B);
+            }
+            add(events.getPairKey(i), A, B);
+        }
+    }
+
+    private void notifyListener()
+    {
+        for (int i = 0; i < size; i++)
+        {
+            switch (types[i])
+            {
+                case BEGIN:
+                    listener.onCollisionBegin(eventA[i], eventB[i], keys[i]);
+                    break;
+                case PERSIST:
+                    listener.onCollisionPersist(eventA[i], eventB[i], keys[i]);
+                    break;
+                default:
+                    listener.onCollisionEnd(eventA[i], eventB[i], keys[i]);
+                    break;
+            }
+        }
+    }
+
+    private void addEvent(int type, long key, Particle A, Particle B)
+    {
+        if (size == types.length)
+        {
+            int newCapacity = size * 2;
+            types = Arrays.copyOf(types, newCapacity);
+            keys = Arrays.copyOf(keys, newCapacity);
+            eventA = Arrays.copyOf(eventA, newCapacity);
+            eventB = Arrays.copyOf(eventB, newCapacity);
+        }
+
+        types[size] = type;
+        keys[size] = key;
+        eventA[size] = A;
+        eventB[size] = B;
+        size++;
+    }
+
+    /**
+     * Get number of events of last step
+     * @return number of events
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Get type of an event
+     * @param i event index
+     * @return BEGIN, PERSIST or END
+     */
+    public int getType(int i)
+    {
+        return types[i];
+    }
+
+    public long getKey(int i)
+    {
+        return keys[i];
+    }
+
+    public Particle getA(int i)
+    {
+        return eventA[i];
+    }
+
+    public Particle getB(int i)
+    {
+        return eventB[i];
+    }
+
+    /**
+     * Get number of pairs colliding during last step
+     * @return number of pairs
+     */
+    public int getPairCount()
+    {
+        return current.size();
+    }
+
+    public long getPairKey(int i)
+    {
+        return current.getKey(i);
+    }
+
+    public Particle getPairA(int i)
+    {
+        return current.getA(i);
+    }
+
+    public Particle getPairB(int i)
+    {
+        return current.getB(i);
+    }
+
+    /**
+     * Know if a pair was colliding during last step
+     * @param key pair key
+     * @return test result
+     */
+    public boolean contains(long key)
+    {
+        return current.contains(key);
+    }
+
+    public void setListener(CollisionListener listener)
+    {
+        this.listener = listener;
+    }
+
+    public CollisionListener getListener()
+    {
+        return listener;
+    }
+}
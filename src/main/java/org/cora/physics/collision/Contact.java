@@ -22,19 +22,23 @@ public class Contact implements Cloneable
     private float    sep;
     private boolean isNotSide;
 
-    public static float DEFAULT_FRICTION = 0.5f;
-    public static float DEFAULT_RESTITUTION = 0.0f;
-    public static float DEFAULT_SEP = 1.0f;
-    public static boolean ACTIVE_RESTITUTION_CORRECTION = true;
+    // Sequential impulses, accumulated over iterations
+    private float    normalImpulse, tangentImpulse;
+    private float    normalMass, tangentMass;
+    private float    velocityBias;
+
+    // Tuning of the engine
+    private boolean  restitutionCorrection;
+    private float    restitutionThreshold;
 
     public Contact(Particle A, Particle B)
     {
-        this(A, B, DEFAULT_RESTITUTION, DEFAULT_FRICTION);
+        this(A, B, ContactConfig.DEFAULT_RESTITUTION, ContactConfig.DEFAULT_FRICTION);
     }
     
     public Contact(Particle A, Particle B, float coefRestitution, float coefFriction)
     {
-        this(A, B, coefRestitution, coefFriction, DEFAULT_SEP);
+        this(A, B, coefRestitution, coefFriction, ContactConfig.DEFAULT_SEP);
     }
     
     public Contact(Particle A, Particle B, float coefRestitution, float coefFriction, float sep)
@@ -49,6 +53,8 @@ public class Contact implements Cloneable
         this.A = A;
         this.B = B;
         isNotSide = true;
+        restitutionCorrection = ContactConfig.DEFAULT_RESTITUTION_CORRECTION;
+        restitutionThreshold = ContactConfig.DEFAULT_RESTITUTION_THRESHOLD;
     }
     
     public Particle get(int i)
@@ -173,12 +179,25 @@ public class Contact implements Cloneable
         this.contactNormal.set(contactNormal);
     }
 
+    public void setContactNormal(float x, float y)
+    {
+        this.contactNormal.set(x, y);
+    }
+
     public void setC(Vector2D CA, Vector2D CB)
     {
         setCA(CA);
         setCB(CB);
     }
 
+    public void setC(float xA, float yA, float xB, float yB)
+    {
+        CA.set(xA, yA);
+        rP[0].set(xA - A.getPosition().x, yA - A.getPosition().y);
+        CB.set(xB, yB);
+        rP[1].set(xB - B.getPosition().x, yB - B.getPosition().y);
+    }
+
     public Vector2D getCA()
     {
         return CA;
@@ -186,7 +205,7 @@ public class Contact implements Cloneable
 
     public void setCA(Vector2D cA)
     {
-        CA = cA;
+        CA.set(cA);
         rP[0].set(CA.sub(A.getPosition()));
     }
 
@@ -197,7 +216,7 @@ public class Contact implements Cloneable
 
     public void setCB(Vector2D cB)
     {
-        CB = cB;
+        CB.set(cB);
         rP[1].set(CB.sub(B.getPosition()));
     }
 
@@ -241,6 +260,17 @@ public class Contact implements Cloneable
         set(information.coefRestitution, information.coefFriction, information.sep);
     }
     
+    /**
+     * Use default coefficients and tuning of an engine
+     * @param config engine configuration
+     */
+    public void set(ContactConfig config)
+    {
+        set(config.getDefaultRestitution(), config.getDefaultFriction(), config.getDefaultSep());
+        restitutionCorrection = config.isRestitutionCorrection();
+        restitutionThreshold = config.getRestitutionThreshold();
+    }
+
     public void set(float coefRestitution, float coefFriction, float sep)
     {
         this.coefRestitution = coefRestitution;
@@ -300,7 +330,7 @@ public class Contact implements Cloneable
         Vector2D relVel = VPB.sub(VPA);
 
         float restitution = (relVel.x < 0.5f) ? 0 : coefRestitution;
-        if (ACTIVE_RESTITUTION_CORRECTION && restitution != 0)
+        if (restitutionCorrection && restitution != 0)
         {
             Vector2D scaledContact = contactNormal.multiply(dt);
             float velocityFromAcc = B.getLastAcceleration().scalarProduct(scaledContact) - A.getLastAcceleration().scalarProduct(scaledContact);
@@ -356,20 +386,27 @@ public class Contact implements Cloneable
         }
 
         // Dynamic friction
-        Vector2D VA1 = VA.add(J.multiply(-A.getInverseMass()));
-        Vector2D VB1 = VB.add(J.multiply(B.getInverseMass()));
-        A.setVelocity(VA1);
-        B.setVelocity(VB1);
+        // Elements with no mass are not written, they may be shared by islands resolved in parallel
+        if (A.getInverseMass() > 0)
+        {
+            Vector2D VA1 = VA.add(J.multiply(-A.getInverseMass()));
+            A.setVelocity(VA1);
+        }
+        if (B.getInverseMass() > 0)
+        {
+            Vector2D VB1 = VB.add(J.multiply(B.getInverseMass()));
+            B.setVelocity(VB1);
+        }
 
         // Angular Responce
-        if (rA != null)
+        if (rA != null && A.getInverseMass() > 0)
         {
             float rotA1 = -rA.getInverseInertia() * rAP.crossProductZ(J);
             rA.setRotation(rotA + rotA1);
 
         }
 
-        if (rB != null)
+        if (rB != null && B.getInverseMass() > 0)
         {
             float rotB1 = rB.getInverseInertia() * rBP.crossProductZ(J);
             rB.setRotation(rotB + rotB1);
@@ -385,6 +422,7 @@ public class Contact implements Cloneable
             if (cone < coefFriction)
             {
                 Contact frictionContact = new Contact(A, B, coefFriction, 0);
+                frictionContact.restitutionCorrection = restitutionCorrection;
                 frictionContact.setContactNormal(Vt);
                 frictionContact.setPenetration(0);
                 frictionContact.setC(CA, CB);
@@ -527,6 +565,146 @@ public class Contact implements Cloneable
         return linearChange;
     }
 
+    public float getNormalImpulse()
+    {
+        return normalImpulse;
+    }
+
+    public float getTangentImpulse()
+    {
+        return tangentImpulse;
+    }
+
+    /**
+     * Start from impulses accumulated by the same contact during last step
+     * @param normalImpulse accumulated normal impulse
+     * @param tangentImpulse accumulated friction impulse
+     */
+    public void setImpulses(float normalImpulse, float tangentImpulse)
+    {
+        this.normalImpulse = normalImpulse;
+        this.tangentImpulse = tangentImpulse;
+    }
+
+    /**
+     * Compute effective masses and restitution bias before velocity iterations
+     * Contact points and normal must be set
+     */
+    public void preSolve()
+    {
+        RigidBody rA = (A instanceof RigidBody) ? (RigidBody) A : null;
+        RigidBody rB = (B instanceof RigidBody) ? (RigidBody) B : null;
+
+        float iMassA = A.getInverseMass();
+        float iMassB = B.getInverseMass();
+        float iInertiaA = (rA == null) ? 0 : rA.getInverseInertia();
+        float iInertiaB = (rB == null) ? 0 : rB.getInverseInertia();
+
+        float nx = contactNormal.x, ny = contactNormal.y;
+        float tx = ny, ty = -nx;
+
+        float rnA = rP[0].x * ny - rP[0].y * nx;
+        float rnB = rP[1].x * ny - rP[1].y * nx;
+        float kNormal = iMassA + iMassB + iInertiaA * rnA * rnA + iInertiaB * rnB * rnB;
+        normalMass = (kNormal > 0) ? 1.0f / kNormal : 0;
+
+        float rtA = rP[0].x * ty - rP[0].y * tx;
+        float rtB = rP[1].x * ty - rP[1].y * tx;
+        float kTangent = iMassA + iMassB + iInertiaA * rtA * rtA + iInertiaB * rtB * rtB;
+        tangentMass = (kTangent > 0) ? 1.0f / kTangent : 0;
+
+        float vn = relativeVelocityX() * nx + relativeVelocityY() * ny;
+        velocityBias = (vn < -restitutionThreshold) ? -coefRestitution * vn : 0;
+    }
+
+    /**
+     * Apply impulses accumulated during last step
+     */
+    public void warmStart()
+    {
+        float nx = contactNormal.x, ny = contactNormal.y;
+        applyImpulse(nx * normalImpulse + ny * tangentImpulse, ny * normalImpulse - nx * tangentImpulse);
+    }
+
+    /**
+     * One velocity iteration
+     * Friction is clamped by the accumulated normal impulse, normal impulse stays positive
+     */
+    public void solveVelocity()
+    {
+        float nx = contactNormal.x, ny = contactNormal.y;
+        float tx = ny, ty = -nx;
+
+        if (coefFriction > 0)
+        {
+            float vt = relativeVelocityX() * tx + relativeVelocityY() * ty;
+            float maxFriction = coefFriction * normalImpulse;
+            float newImpulse = tangentImpulse - tangentMass * vt;
+            newImpulse = Math.max(-maxFriction, Math.min(newImpulse, maxFriction));
+            float lambda = newImpulse - tangentImpulse;
+            tangentImpulse = newImpulse;
+            applyImpulse(tx * lambda, ty * lambda);
+        }
+
+        float vn = relativeVelocityX() * nx + relativeVelocityY() * ny;
+        float newImpulse = Math.max(normalImpulse - normalMass * (vn - velocityBias), 0);
+        float lambda = newImpulse - normalImpulse;
+        normalImpulse = newImpulse;
+        applyImpulse(nx * lambda, ny * lambda);
+    }
+
+    // Velocity of contact point on B relative to contact point on A
+    private float relativeVelocityX()
+    {
+        float vx = B.getVelocity().x - A.getVelocity().x;
+        if (B instanceof RigidBody)
+            vx -= ((RigidBody) B).getRotation() * rP[1].y;
+        if (A instanceof RigidBody)
+            vx += ((RigidBody) A).getRotation() * rP[0].y;
+        return vx;
+    }
+
+    private float relativeVelocityY()
+    {
+        float vy = B.getVelocity().y - A.getVelocity().y;
+        if (B instanceof RigidBody)
+            vy += ((RigidBody) B).getRotation() * rP[1].x;
+        if (A instanceof RigidBody)
+            vy -= ((RigidBody) A).getRotation() * rP[0].x;
+        return vy;
+    }
+
+    // Impulse is applied to B and its opposite to A
+    // Elements with no mass are not written, they may be shared by islands resolved in parallel
+    private void applyImpulse(float px, float py)
+    {
+        float iMassA = A.getInverseMass();
+        if (iMassA > 0)
+        {
+            Vector2D VA = A.getVelocity();
+            VA.x -= px * iMassA;
+            VA.y -= py * iMassA;
+            if (A instanceof RigidBody)
+            {
+                RigidBody rA = (RigidBody) A;
+                rA.setRotation(rA.getRotation() - rA.getInverseInertia() * (rP[0].x * py - rP[0].y * px));
+            }
+        }
+
+        float iMassB = B.getInverseMass();
+        if (iMassB > 0)
+        {
+            Vector2D VB = B.getVelocity();
+            VB.x += px * iMassB;
+            VB.y += py * iMassB;
+            if (B instanceof RigidBody)
+            {
+                RigidBody rB = (RigidBody) B;
+                rB.setRotation(rB.getRotation() + rB.getInverseInertia() * (rP[1].x * py - rP[1].y * px));
+            }
+        }
+    }
+
     public float desiredVel(Vector2D relVel, FloatA vAcc, float dt)
     {
         vAcc.v = -A.getLastAcceleration().scalarProduct(contactNormal) * dt;
@@ -0,0 +1,185 @@
+package org.cora.physics.collision;
+
+import org.cora.physics.entities.Particle;
+
+import java.util.Arrays;
+
+/**
+ * Contact manifolds kept between steps, keyed by broad phase pair key
+ * Keys are stored in a primitive open addressing table, manifolds in dense arrays
+ */
+public class ContactCache
+{
+    private final static int EMPTY = -1;
+
+    private int[] table;
+
+    private long[] keys;
+    private ContactManifold[] manifolds;
+    private int size;
+
+    public ContactCache()
+    {
+        table = new int[64];
+        Arrays.fill(table, EMPTY);
+        keys = new long[32];
+        manifolds = new ContactManifold[32];
+        size = 0;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public long getKey(int i)
+    {
+        return keys[i];
+    }
+
+    public ContactManifold getManifold(int i)
+    {
+        return manifolds[i];
+    }
+
+    /**
+     * Get manifold of a pair
+     * Does not modify the cache, can be called by several threads
+     * @param key pair key
+     * @return manifold or null if not found
+     */
+    public ContactManifold get(long key)
+    {
+        int mask = table.length - 1;
+        int slot = hash(key) & mask;
+
+        while (table[slot] != EMPTY)
+        {
+            if (keys[table[slot]] == key)
+                return manifolds[table[slot]];
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Add or replace manifold of a pair
+     * @param key pair key
+     * @param manifold manifold
+     */
+    public void put(long key, ContactManifold manifold)
+    {
+        int mask = table.length - 1;
+        int slot = hash(key) & mask;
+
+        while (table[slot] != EMPTY)
+        {
+            if (keys[table[slot]] == key)
+            {
+                manifolds[table[slot]] = manifold;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        ensureCapacity(size + 1);
+        keys[size] = key;
+        manifolds[size] = manifold;
+        size++;
+
+        if (size * 2 > table.length)
+            rebuild(table.length * 2);
+        else
+            table[slot] = size - 1;
+    }
+
+    /**
+     * Remove manifolds of pairs that were not tested during a step
+     * @param step current step
+     */
+    public void retain(int step)
+    {
+        int count = 0;
+        for (int i = 0; i < size; i++)
+        {
+            if (manifolds[i].getStep() == step)
+            {
+                keys[count] = keys[i];
+                manifolds[count] = manifolds[i];
+                count++;
+            }
+        }
+        shrink(count);
+    }
+
+    /**
+     * Remove manifolds of an element
+     * @param p removed element
+     */
+    public void remove(Particle p)
+    {
+        int count = 0;
+        for (int i = 0; i < size; i++)
+        {
+            if (manifolds[i].getA() != p && manifolds[i].getB() != p)
+            {
+                keys[count] = keys[i];
+                manifolds[count] = manifolds[i];
+                count++;
+            }
+        }
+        shrink(count);
+    }
+
+    public void clear()
+    {
+        shrink(0);
+    }
+
+    // Tools
+    private void shrink(int count)
+    {
+        if (count == size)
+            return;
+
+        Arrays.fill(manifolds, count, size, null);
+        size = count;
+        rebuild(table.length);
+    }
+
+    private void rebuild(int tableSize)
+    {
+        if (table.length != tableSize)
+            table = new int[tableSize];
+        Arrays.fill(table, EMPTY);
+
+        int mask = table.length - 1;
+        for (int i = 0; i < size; i++)
+        {
+            int slot = hash(keys[i]) & mask;
+            while (table[slot] != EMPTY)
+            {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i;
+        }
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity <= keys.length)
+            return;
+
+        int newCapacity = Math.max(capacity, keys.length * 2);
+        keys = Arrays.copyOf(keys, newCapacity);
+        manifolds = Arrays.copyOf(manifolds, newCapacity);
+    }
+
+    private static int hash(long key)
+    {
+        key ^= (key >>> 33);
+        key *= 0xff51afd7ed558ccdL;
+        key ^= (key >>> 33);
+        return (int) key;
+    }
+}
@@ -0,0 +1,129 @@
+package org.cora.physics.collision;
+
+/**
+ * Contact tuning of one engine
+ * Used by contact generation and resolution, engines with different configurations can be updated at the same time
+ */
+public class ContactConfig implements Cloneable
+{
+    public final static float   DEFAULT_FRICTION = 0.5f;
+    public final static float   DEFAULT_RESTITUTION = 0.0f;
+    public final static float   DEFAULT_SEP = 1.0f;
+    public final static boolean DEFAULT_RESTITUTION_CORRECTION = true;
+    public final static float   DEFAULT_THRESHOLD_SIDE_DETECTION = 0.1f;
+    public final static float   DEFAULT_RESTITUTION_THRESHOLD = 0.5f;
+
+    private float   defaultFriction;
+    private float   defaultRestitution;
+    private float   defaultSep;
+    private boolean restitutionCorrection;
+    private float   thresholdSideDetection;
+    private float   restitutionThreshold;
+
+    public ContactConfig()
+    {
+        defaultFriction = DEFAULT_FRICTION;
+        defaultRestitution = DEFAULT_RESTITUTION;
+        defaultSep = DEFAULT_SEP;
+        restitutionCorrection = DEFAULT_RESTITUTION_CORRECTION;
+        thresholdSideDetection = DEFAULT_THRESHOLD_SIDE_DETECTION;
+        restitutionThreshold = DEFAULT_RESTITUTION_THRESHOLD;
+    }
+
+    @Override
+    public Object clone()
+    {
+        try
+        {
+            return super.clone();
+        }
+        catch (CloneNotSupportedException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Friction of contacts between elements with no material type
+     * @return friction between 0 and 1.0
+     */
+    public float getDefaultFriction()
+    {
+        return defaultFriction;
+    }
+
+    public void setDefaultFriction(float defaultFriction)
+    {
+        this.defaultFriction = defaultFriction;
+    }
+
+    /**
+     * Restitution of contacts between elements with no material type
+     * @return restitution between 0 and 1.0
+     */
+    public float getDefaultRestitution()
+    {
+        return defaultRestitution;
+    }
+
+    public void setDefaultRestitution(float defaultRestitution)
+    {
+        this.defaultRestitution = defaultRestitution;
+    }
+
+    /**
+     * Part of penetration corrected for elements with no material type
+     * @return separation between 0 and 1.0
+     */
+    public float getDefaultSep()
+    {
+        return defaultSep;
+    }
+
+    public void setDefaultSep(float defaultSep)
+    {
+        this.defaultSep = defaultSep;
+    }
+
+    /**
+     * Restitution correction takes into account last acceleration
+     * @return true if correction is active
+     */
+    public boolean isRestitutionCorrection()
+    {
+        return restitutionCorrection;
+    }
+
+    public void setRestitutionCorrection(boolean restitutionCorrection)
+    {
+        this.restitutionCorrection = restitutionCorrection;
+    }
+
+    /**
+     * Threshold used to accept two support points as a side
+     * @return threshold
+     */
+    public float getThresholdSideDetection()
+    {
+        return thresholdSideDetection;
+    }
+
+    public void setThresholdSideDetection(float thresholdSideDetection)
+    {
+        this.thresholdSideDetection = thresholdSideDetection;
+    }
+
+    /**
+     * Min approach speed for restitution with sequential impulses
+     * @return speed
+     */
+    public float getRestitutionThreshold()
+    {
+        return restitutionThreshold;
+    }
+
+    public void setRestitutionThreshold(float restitutionThreshold)
+    {
+        this.restitutionThreshold = restitutionThreshold;
+    }
+}
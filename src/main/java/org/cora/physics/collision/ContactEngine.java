@@ -4,11 +4,16 @@ import org.cora.maths.Circle;
 import org.cora.maths.Form;
 import org.cora.maths.collision.CollisionDetectorNoT;
 import org.cora.maths.sRectangle;
+import org.cora.physics.Engine.BroadPhase;
+import org.cora.physics.Engine.PairSet;
 import org.cora.physics.Engine.QuadTree;
 import org.cora.physics.entities.Particle;
 import org.cora.physics.entities.RigidBody;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Engine that handle and resolve objects collisions
@@ -16,18 +21,50 @@ import java.util.*;
 public class ContactEngine implements Cloneable
 {
     private ArrayList<Particle> elements;
+    private Map<Particle, Integer> elementIndices;
     private ArrayList<Contact>  contacts;
     private QuadTree            quadTree;
-    private boolean             saveCollision;
+    private BroadPhase          broadPhase;
+    private PairSet             pairs;
+    private ContactIslands      islands;
+    private boolean[]           collidedPairs;
+    private boolean[]           skippedPairs;
+    private ForkJoinPool        pool;
+    private boolean             sequentialImpulse;
+    private boolean             deterministic;
+    private ContactConfig       config;
+    private int                 velocityIterations;
+    private ContactCache        contactCache;
+    private ContactManifold[]   pairManifolds;
+    private ContactManifold[]   spareManifolds;
+    private int                 step;
+    private CollisionEvents     collisionEvents;
     private Map<Particle, Set<Particle>> savedCollisions;
+    private int                 savedCollisionsStep;
 
     public ContactEngine()
     {
         elements = new ArrayList<Particle>();
+        elementIndices = new HashMap<Particle, Integer>();
         contacts = new ArrayList<Contact>();
         savedCollisions = new HashMap<Particle, Set<Particle>>();
         quadTree = new QuadTree();
-        saveCollision = true;
+        broadPhase = quadTree;
+        pairs = new PairSet();
+        islands = new ContactIslands();
+        collidedPairs = new boolean[64];
+        skippedPairs = new boolean[64];
+        pool = null;
+        sequentialImpulse = false;
+        deterministic = false;
+        config = new ContactConfig();
+        velocityIterations = 8;
+        contactCache = new ContactCache();
+        pairManifolds = new ContactManifold[64];
+        spareManifolds = new ContactManifold[64];
+        step = 0;
+        collisionEvents = new CollisionEvents();
+        savedCollisionsStep = -1;
     }
 
     @Override
@@ -45,6 +82,7 @@ public class ContactEngine implements Cloneable
         }
 
         ce.elements = new ArrayList<>(elements);
+        ce.elementIndices = new HashMap<>(elementIndices);
         ce.contacts = new ArrayList<>();
 
         for (int i = 0; i < contacts.size(); i++)
@@ -54,16 +92,19 @@ public class ContactEngine implements Cloneable
         }
 
         ce.quadTree = (QuadTree) quadTree.clone();
+        ce.broadPhase = (broadPhase == quadTree) ? ce.quadTree : (BroadPhase) broadPhase.clone();
+        ce.pairs = new PairSet();
+        ce.islands = new ContactIslands();
+        ce.collidedPairs = new boolean[collidedPairs.length];
+        ce.skippedPairs = new boolean[skippedPairs.length];
+        ce.contactCache = new ContactCache();
+        ce.config = (ContactConfig) config.clone();
+        ce.pairManifolds = new ContactManifold[pairManifolds.length];
+        ce.spareManifolds = new ContactManifold[spareManifolds.length];
+        ce.collisionEvents = new CollisionEvents();
+        ce.collisionEvents.set(collisionEvents, null);
         ce.savedCollisions = new HashMap<Particle, Set<Particle>>();
-
-        savedCollisions.entrySet();
-        for (Iterator<Map.Entry<Particle, Set<Particle>>> iterator = savedCollisions.entrySet().iterator(); iterator.hasNext(); )
-        {
-            Map.Entry<Particle, Set<Particle>> next =  iterator.next();
-            Particle p = next.getKey();
-            Set<Particle> ps = next.getValue();
-            ce.savedCollisions.put(p, new HashSet<>(ps));
-        }
+        ce.savedCollisionsStep = -1;
         return ce;
     }
 
@@ -86,6 +127,8 @@ public class ContactEngine implements Cloneable
             Particle particle =  elements.get(i);
             ce.elements.add(change.get(particle));
         }
+        ce.elementIndices = new HashMap<>();
+        ce.updateIndices(0);
 
         ce.contacts = new ArrayList<>();
 
@@ -96,35 +139,195 @@ public class ContactEngine implements Cloneable
         }
 
         ce.quadTree = (QuadTree) quadTree.clone(change);
+        ce.broadPhase = (broadPhase == quadTree) ? ce.quadTree : (BroadPhase) broadPhase.clone(change);
+        ce.pairs = new PairSet();
+        ce.islands = new ContactIslands();
+        ce.collidedPairs = new boolean[collidedPairs.length];
+        ce.skippedPairs = new boolean[skippedPairs.length];
+        ce.contactCache = new ContactCache();
+        ce.config = (ContactConfig) config.clone();
+        ce.pairManifolds = new ContactManifold[pairManifolds.length];
+        ce.spareManifolds = new ContactManifold[spareManifolds.length];
+        ce.collisionEvents = new CollisionEvents();
+        ce.collisionEvents.set(collisionEvents, change);
         ce.savedCollisions = new HashMap<Particle, Set<Particle>>();
+        ce.savedCollisionsStep = -1;
+        return ce;
+    }
+
+
+    public void add(Particle p)
+    {
+        elementIndices.put(p, elements.size());
+        elements.add(p);
+    }
+
+    public void remove(Particle p)
+    {
+        Integer index = elementIndices.remove(p);
+        if (index != null)
+        {
+            elements.remove((int) index);
+            updateIndices(index);
+        }
+        broadPhase.remove(p);
+        contactCache.remove(p);
+        collisionEvents.remove(p);
+        savedCollisionsStep = -1;
+    }
+
+    private void updateIndices(int start)
+    {
+        for (int i = start; i < elements.size(); i++)
+        {
+            elementIndices.put(elements.get(i), i);
+        }
+    }
 
-        savedCollisions.entrySet();
-        for (Iterator<Map.Entry<Particle, Set<Particle>>> iterator = savedCollisions.entrySet().iterator(); iterator.hasNext(); )
+    /**
+     * Get max number of bytes written by writeState
+     * @return size in bytes
+     */
+    public int getStateSize()
+    {
+        int size = 3 * 4 + collisionEvents.getPairCount() * 2 * 4;
+        for (int i = 0; i < contactCache.size(); i++)
         {
-            Map.Entry<Particle, Set<Particle>> next =  iterator.next();
-            Particle p = next.getKey();
-            Set<Particle> ps = next.getValue();
+            size += 3 * 4 + contactCache.getManifold(i).size() * 3 * 4;
+        }
+        return size;
+    }
 
-            Set<Particle> psC = new HashSet<>();
-            for (Iterator<Particle> particleIterator = ps.iterator(); particleIterator.hasNext(); )
+    /**
+     * Write kept contacts and colliding pairs of last step at buffer position
+     * Elements are written as their index, pair keys depend on broad phase ids and are computed again when read
+     * Impulses of each contact are written with its feature, other contact data are generated again during the next step
+     * Manifolds and pairs of elements not handled anymore are skipped
+     * @param buffer buffer with at least getStateSize remaining bytes
+     */
+    public void writeState(ByteBuffer buffer)
+    {
+        buffer.putInt(step);
+
+        // Counts are written once known
+        int countPosition = buffer.position();
+        int count = 0;
+        buffer.putInt(0);
+        for (int i = 0; i < contactCache.size(); i++)
+        {
+            ContactManifold manifold = contactCache.getManifold(i);
+            if (!isHandled(manifold.getA()) || !isHandled(manifold.getB()))
+                continue;
+
+            count++;
+            buffer.putInt(elementIndices.get(manifold.getA()));
+            buffer.putInt(elementIndices.get(manifold.getB()));
+            buffer.putInt(manifold.size());
+            for (int j = 0; j < manifold.size(); j++)
             {
-                Particle particle =  particleIterator.next();
-                psC.add(change.get(particle));
+                Contact contact = manifold.get(j);
+                buffer.putInt(manifold.getFeature(j));
+                buffer.putFloat(contact.getNormalImpulse());
+                buffer.putFloat(contact.getTangentImpulse());
             }
-            ce.savedCollisions.put(change.get(p), psC);
         }
-        return ce;
-    }
 
+        buffer.putInt(countPosition, count);
 
-    public void add(Particle p)
+        // Colliding pairs of last step, compared with pairs of next step to send events
+        countPosition = buffer.position();
+        count = 0;
+        buffer.putInt(0);
+        for (int i = 0; i < collisionEvents.getPairCount(); i++)
+        {
+            if (!isHandled(collisionEvents.getPairA(i)) || !isHandled(collisionEvents.getPairB(i)))
+                continue;
+
+            count++;
+            buffer.putInt(elementIndices.get(collisionEvents.getPairA(i)));
+            buffer.putInt(elementIndices.get(collisionEvents.getPairB(i)));
+        }
+        buffer.putInt(countPosition, count);
+    }
+
+    private boolean isHandled(Particle p)
     {
-        elements.add(p);
+        return elementIndices.containsKey(p);
     }
 
-    public void remove(Particle p)
+    /**
+     * Read kept contacts and colliding pairs written by writeState in place
+     * Elements must be the same, in the same order, as when the state was written
+     * Broad phase is updated first so that all elements have an id, pair keys are computed with current ids
+     * Manifolds still kept for the same pair are reused
+     * @param buffer buffer at position of the state
+     */
+    public void readState(ByteBuffer buffer)
     {
-        elements.remove(p);
+        refreshElements();
+        broadPhase.update(elements);
+
+        step = buffer.getInt();
+        int count = buffer.getInt();
+
+        // Manifolds not found in the state are removed once all of them are read
+        for (int i = 0; i < contactCache.size(); i++)
+        {
+            contactCache.getManifold(i).setStep(step - 1);
+        }
+
+        for (int i = 0; i < count; i++)
+        {
+            Particle A = elements.get(buffer.getInt());
+            Particle B = elements.get(buffer.getInt());
+            int size = buffer.getInt();
+
+            // Contacts of a pair whose ids order has changed belong to the other order, they are generated again
+            boolean isSwapped = broadPhase.getId(A) > broadPhase.getId(B);
+            if (isSwapped)
+            {
+                Particle temp = A;
+                A = B;
+                B = temp;
+            }
+            long key = PairSet.key(broadPhase.getId(A), broadPhase.getId(B));
+
+            ContactManifold manifold = contactCache.get(key);
+            if (manifold == null || manifold.getA() != A || manifold.getB() != B)
+            {
+                manifold = new ContactManifold(A, B);
+                contactCache.put(key, manifold);
+            }
+
+            manifold.begin();
+            for (int j = 0; j < size; j++)
+            {
+                int feature = buffer.getInt();
+                float normalImpulse = buffer.getFloat();
+                float tangentImpulse = buffer.getFloat();
+                if (!isSwapped)
+                    manifold.add(feature).setImpulses(normalImpulse, tangentImpulse);
+            }
+            manifold.end();
+            manifold.setStep(step);
+        }
+        contactCache.retain(step);
+
+        // No event is sent for restored pairs, they are compared with pairs of next step
+        collisionEvents.clear();
+        int pairCount = buffer.getInt();
+        for (int i = 0; i < pairCount; i++)
+        {
+            Particle A = elements.get(buffer.getInt());
+            Particle B = elements.get(buffer.getInt());
+            if (broadPhase.getId(A) < broadPhase.getId(B))
+                collisionEvents.add(PairSet.key(broadPhase.getId(A), broadPhase.getId(B)), A, B);
+            else
+                collisionEvents.add(PairSet.key(broadPhase.getId(B), broadPhase.getId(A)), B, A);
+        }
+        // Current ids may be in another order than when the state was written
+        collisionEvents.sortPairs();
+        savedCollisionsStep = -1;
     }
 
     public void findContacts(float dt)
@@ -137,7 +340,7 @@ public class ContactEngine implements Cloneable
             for (int j = i + 1; j < elements.size(); j++)
             {
                 B = elements.get(j);
-                ContactGenerator.generateContacts(A, B, contacts, dt);
+                ContactGenerator.generateContacts(A, B, contacts, config, dt);
             }
         }
     }
@@ -149,54 +352,526 @@ public class ContactEngine implements Cloneable
 
     public void findAndResolveContacts(float dt)
     {
-        quadTree.clear();
-        quadTree.inserts(elements);
+        refreshElements();
+        broadPhase.update(elements);
+        pairs.clear();
+        broadPhase.findPairs(pairs);
+        if (deterministic)
+            pairs.sort();
         contacts.clear();
-        savedCollisions.clear();
+        collisionEvents.begin();
+
+        islands.build(pairs);
+        if (collidedPairs.length < pairs.size())
+            collidedPairs = new boolean[Math.max(pairs.size(), collidedPairs.length * 2)];
+        Arrays.fill(collidedPairs, 0, pairs.size(), false);
+        if (pairManifolds.length < pairs.size())
+        {
+            pairManifolds = new ContactManifold[Math.max(pairs.size(), pairManifolds.length * 2)];
+            spareManifolds = Arrays.copyOf(spareManifolds, pairManifolds.length);
+        }
+        step++;
+
+        if (sequentialImpulse)
+            generatePairsContacts(dt);
+
+        int islandCount = islands.getIslandCount();
+        if (pool == null || islandCount < 2)
+        {
+            for (int k = 0; k < islandCount; k++)
+            {
+                resolveIsland(k, contacts, dt);
+            }
+        }
+        else
+        {
+            pool.invoke(new IslandsTask(0, islandCount, dt));
+        }
+
+        // Cache is only read by islands, manifolds of colliding pairs are added once they are done
+        // Manifolds of pairs not colliding anymore are removed from the cache
+        for (int i = 0; i < pairs.size(); i++)
+        {
+            ContactManifold manifold = pairManifolds[i];
+            pairManifolds[i] = null;
+            if (!collidedPairs[i])
+                continue;
+
+            manifold.setStep(step);
+            if (manifold == spareManifolds[i])
+                spareManifolds[i] = null;
+            contactCache.put(pairs.getKey(i), manifold);
+            collisionEvents.add(pairs.getKey(i), pairs.getA(i), pairs.getB(i));
+        }
+        contactCache.retain(step);
+        collisionEvents.end();
+    }
+
+    /**
+     * Compute form, saved bounds and form cache of all elements on calling thread
+     * Getters of elements compute them when outdated, elements with no mass are read by many islands at once
+     * and must not be changed by pool threads
+     */
+    private void refreshElements()
+    {
+        for (int i = 0; i < elements.size(); i++)
+        {
+            Particle p = elements.get(i);
+            p.updateForm();
+            p.updateBounds();
+            p.getFormCache();
+        }
+    }
+
+    /**
+     * Generate contacts of all pairs once, pairs are split between pool threads
+     * Each pair writes in its own manifold, islands read manifolds in pair order
+     * @param dt time since last update
+     */
+    private void generatePairsContacts(float dt)
+    {
+        int n = pairs.size();
+        if (skippedPairs.length < n)
+            skippedPairs = new boolean[Math.max(n, skippedPairs.length * 2)];
+
+        if (pool == null || n <= NarrowPhaseTask.MIN_PAIRS)
+            generatePairsContacts(0, n, dt);
+        else
+            pool.invoke(new NarrowPhaseTask(0, n, dt));
+
+        // Elements are woken up on calling thread once all pairs are tested
+        for (int i = 0; i < n; i++)
+        {
+            if (collidedPairs[i])
+                wakeUp(pairs.getA(i), pairs.getB(i));
+        }
+
+        // Pairs skipped because of elements that have just been woken up
+        for (int i = 0; i < n; i++)
+        {
+            if (skippedPairs[i] && !isSleepingPair(pairs.getA(i), pairs.getB(i)))
+            {
+                generatePairContacts(i, dt);
+                if (collidedPairs[i])
+                    wakeUp(pairs.getA(i), pairs.getB(i));
+            }
+        }
+    }
+
+    private void generatePairsContacts(int start, int end, float dt)
+    {
+        for (int i = start; i < end; i++)
+        {
+            generatePairContacts(i, dt);
+        }
+    }
+
+    private void generatePairContacts(int i, float dt)
+    {
+        skippedPairs[i] = isSleepingPair(pairs.getA(i), pairs.getB(i));
+        if (skippedPairs[i])
+        {
+            keepManifold(i);
+            return;
+        }
+
+        collidedPairs[i] = ContactGenerator.generateContacts(getManifold(i), config, dt);
+    }
+
+    /**
+     * Generate contacts of a range of pairs, split between pool threads
+     */
+    private class NarrowPhaseTask extends RecursiveAction
+    {
+        private final static int MIN_PAIRS = 64;
+
+        private final int start, end;
+        private final float dt;
+
+        public NarrowPhaseTask(int start, int end, float dt)
+        {
+            this.start = start;
+            this.end = end;
+            this.dt = dt;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (end - start <= MIN_PAIRS)
+            {
+                generatePairsContacts(start, end, dt);
+                return;
+            }
+
+            int middle = (start + end) >>> 1;
+            invokeAll(new NarrowPhaseTask(start, middle, dt), new NarrowPhaseTask(middle, end, dt));
+        }
+    }
+
+    /**
+     * Resolve contacts of one island
+     * Islands share no moving element, they can be resolved at the same time
+     * @param island island index
+     * @param islandContacts contacts buffer used by the calling thread
+     * @param dt time since last update
+     */
+    private void resolveIsland(int island, ArrayList<Contact> islandContacts, float dt)
+    {
+        if (sequentialImpulse)
+            resolveIslandImpulses(island, islandContacts);
+        else
+            resolveIslandIterative(island, dt);
+    }
+
+    /**
+     * Get manifold of a pair kept between steps
+     * A pair not colliding during last step gets the spare manifold of its pair index
+     * Manifold is kept for the pair until the end of the step, then added to the cache if the pair collided
+     * @param i pair index
+     * @return manifold
+     */
+    private ContactManifold getManifold(int i)
+    {
+        if (pairManifolds[i] != null)
+            return pairManifolds[i];
+
+        ContactManifold manifold = contactCache.get(pairs.getKey(i));
+        if (manifold == null || manifold.getA() != pairs.getA(i) || manifold.getB() != pairs.getB(i))
+        {
+            // Each pair index is used by one thread, its spare manifold can be reused without lock
+            manifold = spareManifolds[i];
+            if (manifold == null)
+            {
+                manifold = new ContactManifold(pairs.getA(i), pairs.getB(i));
+                spareManifolds[i] = manifold;
+            }
+            else
+            {
+                manifold.reset(pairs.getA(i), pairs.getB(i));
+            }
+        }
+
+        pairManifolds[i] = manifold;
+        return manifold;
+    }
+
+    /**
+     * Keep manifold of a pair that was not tested
+     * @param i pair index
+     */
+    private void keepManifold(int i)
+    {
+        ContactManifold manifold = contactCache.get(pairs.getKey(i));
+        if (manifold != null)
+            manifold.setStep(step);
+    }
+
+    /**
+     * Resolve contacts of one island until there is no more collision
+     * @param island island index
+     * @param dt time since last update
+     */
+    private void resolveIslandIterative(int island, float dt)
+    {
+        int start = islands.getStart(island);
+        int end = islands.getEnd(island);
+        int maxTests = islands.getBodyCount(island) * 2;
 
         boolean isCollision = true;
-        ArrayList<Particle> collidings = new ArrayList<Particle>();
         Particle A, B;
 
         int test = 0;
-        while (isCollision && test < elements.size() * 2)
+        while (isCollision && test < maxTests)
         {
             isCollision = false;
-            for (int i = 0; i < elements.size(); i++)
+            for (int j = start; j < end; j++)
             {
-                A = elements.get(i);
-                quadTree.retrieve(A, collidings);
+                int i = islands.getPair(j);
+                A = pairs.getA(i);
+                B = pairs.getB(i);
 
-                for (int j = 0; j < collidings.size(); j++)
+                if (isSleepingPair(A, B))
                 {
-                    B = collidings.get(j);
-                    if (B == A)
-                        continue;
+                    keepManifold(i);
+                    continue;
+                }
 
-                    if (ContactGenerator.generateContacts(A, B, contacts, dt))
+                ContactManifold manifold = getManifold(i);
+                if (ContactGenerator.generateContacts(manifold, config, dt))
+                {
+                    wakeUp(A, B);
+                    collidedPairs[i] = true;
+                    for (int w = 0; w < manifold.size(); w++)
                     {
-                        addSavedCollision(A, B);
-                        for (int w = 0; w < contacts.size(); w++)
-                        {
-                            contacts.get(w).resolve(dt);
-                            isCollision = true;
-                        }
+                        manifold.get(w).resolve(dt);
+                        isCollision = true;
                     }
-                    contacts.clear();
                 }
-                collidings.clear();
             }
             test++;
         }
     }
 
-    private void addSavedCollision(Particle A, Particle B)
+    /**
+     * Run a fixed number of velocity iterations on contacts of one island
+     * Contacts are generated once before, in pair order
+     * Impulses are accumulated and clamped, contacts found again start from their impulses of last step
+     * @param island island index
+     * @param islandContacts island contacts buffer
+     */
+    private void resolveIslandImpulses(int island, ArrayList<Contact> islandContacts)
     {
-        if (saveCollision)
+        int start = islands.getStart(island);
+        int end = islands.getEnd(island);
+
+        for (int j = start; j < end; j++)
+        {
+            int i = islands.getPair(j);
+            if (!collidedPairs[i])
+                continue;
+
+            ContactManifold manifold = pairManifolds[i];
+            for (int w = 0; w < manifold.size(); w++)
+            {
+                islandContacts.add(manifold.get(w));
+            }
+        }
+
+        for (int w = 0; w < islandContacts.size(); w++)
+        {
+            islandContacts.get(w).preSolve();
+            islandContacts.get(w).warmStart();
+        }
+
+        for (int iteration = 0; iteration < velocityIterations; iteration++)
         {
-            addSavedCollisionFree(A, B);
-            addSavedCollisionFree(B, A);
+            for (int w = 0; w < islandContacts.size(); w++)
+            {
+                islandContacts.get(w).solveVelocity();
+            }
+        }
+
+        for (int w = 0; w < islandContacts.size(); w++)
+        {
+            islandContacts.get(w).resolvePenetration();
         }
+        islandContacts.clear();
+    }
+
+    /**
+     * Resolve a range of islands, split between pool threads
+     */
+    private class IslandsTask extends RecursiveAction
+    {
+        private final static int MIN_PAIRS = 64;
+
+        private final int start, end;
+        private final float dt;
+
+        public IslandsTask(int start, int end, float dt)
+        {
+            this.start = start;
+            this.end = end;
+            this.dt = dt;
+        }
+
+        @Override
+        protected void compute()
+        {
+            int pairsCount = islands.getEnd(end - 1) - islands.getStart(start);
+            if (end - start < 2 || pairsCount <= MIN_PAIRS)
+            {
+                ArrayList<Contact> localContacts = new ArrayList<Contact>();
+                for (int k = start; k < end; k++)
+                {
+                    resolveIsland(k, localContacts, dt);
+                }
+                return;
+            }
+
+            int middle = (start + end) >>> 1;
+            invokeAll(new IslandsTask(start, middle, dt), new IslandsTask(middle, end, dt));
+        }
+    }
+
+    /**
+     * Set pool used to resolve islands in parallel
+     * @param pool fork join pool, null to resolve on calling thread
+     */
+    public void setPool(ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * Get pool used to resolve islands in parallel
+     * @return pool or null if resolution is done on calling thread
+     */
+    public ForkJoinPool getPool()
+    {
+        return pool;
+    }
+
+    /**
+     * Get contact tuning of this engine
+     * @return configuration, changes are used from next update
+     */
+    public ContactConfig getConfig()
+    {
+        return config;
+    }
+
+    /**
+     * Change contact tuning of this engine
+     * @param config configuration
+     */
+    public void setConfig(ContactConfig config)
+    {
+        this.config = config;
+    }
+
+    /**
+     * Get begin, persist and end events of colliding pairs of last step
+     * @return events
+     */
+    public CollisionEvents getCollisionEvents()
+    {
+        return collisionEvents;
+    }
+
+    /**
+     * Use sequential impulses instead of resolving contacts until there is no more collision
+     * @param sequentialImpulse true to use sequential impulses
+     */
+    public void setSequentialImpulse(boolean sequentialImpulse)
+    {
+        this.sequentialImpulse = sequentialImpulse;
+        contactCache.clear();
+    }
+
+    public boolean isSequentialImpulse()
+    {
+        return sequentialImpulse;
+    }
+
+    /**
+     * Sort pairs found by broad phase by key before resolution
+     * Resolution order no longer depends on broad phase traversal, which depends on hash codes of elements
+     * @param deterministic true to sort pairs
+     */
+    public void setDeterministic(boolean deterministic)
+    {
+        this.deterministic = deterministic;
+    }
+
+    public boolean isDeterministic()
+    {
+        return deterministic;
+    }
+
+    /**
+     * Set number of velocity iterations used by sequential impulses
+     * @param velocityIterations iterations each step
+     */
+    public void setVelocityIterations(int velocityIterations)
+    {
+        this.velocityIterations = velocityIterations;
+    }
+
+    public int getVelocityIterations()
+    {
+        return velocityIterations;
+    }
+
+    /**
+     * Give each awake element of an island the lowest sleep time of the island
+     * Elements of an island are then put to sleep at the same step, a pile is not woken up by
+     * one of its elements that is still slowing down
+     * Uses islands of last contacts resolution
+     */
+    public void shareSleepTime()
+    {
+        for (int k = 0; k < islands.getIslandCount(); k++)
+        {
+            int start = islands.getStart(k);
+            int end = islands.getEnd(k);
+
+            float minSleepTime = Float.MAX_VALUE;
+            for (int j = start; j < end; j++)
+            {
+                int i = islands.getPair(j);
+                minSleepTime = Math.min(minSleepTime, getSleepTime(pairs.getA(i)));
+                minSleepTime = Math.min(minSleepTime, getSleepTime(pairs.getB(i)));
+            }
+
+            for (int j = start; j < end; j++)
+            {
+                int i = islands.getPair(j);
+                pairs.getA(i).limitSleepTime(minSleepTime);
+                pairs.getB(i).limitSleepTime(minSleepTime);
+            }
+        }
+    }
+
+    /**
+     * Sleep time of an awake moving element, elements that can not sleep do not limit their island
+     */
+    private static float getSleepTime(Particle p)
+    {
+        return isMoving(p) ? p.getSleepTime() : Float.MAX_VALUE;
+    }
+
+    /**
+     * Pair with no moving element and at least one sleeping element
+     * @param A first element
+     * @param B second element
+     * @return true if the pair can be skipped
+     */
+    private static boolean isSleepingPair(Particle A, Particle B)
+    {
+        if (A.isAwake() && B.isAwake())
+            return false;
+
+        return !isMoving(A) && !isMoving(B);
+    }
+
+    private static boolean isMoving(Particle p)
+    {
+        return p.isAwake() && p.getInverseMass() > 0;
+    }
+
+    private static void wakeUp(Particle A, Particle B)
+    {
+        if (!A.isAwake())
+            A.setAwake(true);
+        if (!B.isAwake())
+            B.setAwake(true);
+    }
+
+    /**
+     * Get elements colliding with each element during last step
+     * Built from colliding pairs only when queried, once per step
+     * @return colliding elements of each element
+     */
+    private Map<Particle, Set<Particle>> getSavedCollisions()
+    {
+        if (savedCollisionsStep != step)
+        {
+            savedCollisions.clear();
+            for (int i = 0; i < collisionEvents.getPairCount(); i++)
+            {
+                addSavedCollision(collisionEvents.getPairA(i), collisionEvents.getPairB(i));
+            }
+            savedCollisionsStep = step;
+        }
+        return savedCollisions;
+    }
+
+    private void addSavedCollision(Particle A, Particle B)
+    {
+        addSavedCollisionFree(A, B);
+        addSavedCollisionFree(B, A);
     }
 
     private void addSavedCollisionFree(Particle A, Particle B)
@@ -243,6 +918,34 @@ public class ContactEngine implements Cloneable
         return quadTree;
     }
 
+    /**
+     * Get broad phase used for collision detection
+     * @return broad phase
+     */
+    public final BroadPhase getBroadPhase()
+    {
+        return broadPhase;
+    }
+
+    /**
+     * Change broad phase used for collision detection
+     * Default broad phase is the quadtree
+     * @param broadPhase new broad phase
+     */
+    public void setBroadPhase(BroadPhase broadPhase)
+    {
+        if (broadPhase == null)
+            broadPhase = quadTree;
+
+        this.broadPhase.clear();
+        this.broadPhase = broadPhase;
+        contactCache.clear();
+
+        // Pair keys change with broad phase
+        collisionEvents.clear();
+        savedCollisionsStep = -1;
+    }
+
     /**
      * Get elements may colliding form QT
      * @param A element
@@ -251,7 +954,7 @@ public class ContactEngine implements Cloneable
     public Set<Particle> getCollisionsQTSet(Particle A)
     {
         Set<Particle> mayCollidings = new HashSet<Particle>();
-        quadTree.retrieve(A, mayCollidings);
+        broadPhase.retrieve(A, mayCollidings);
         return mayCollidings;
     }
 
@@ -263,7 +966,7 @@ public class ContactEngine implements Cloneable
     public ArrayList<Particle> getCollisionsQTList(Particle A)
     {
         ArrayList<Particle> mayCollidings = new ArrayList<Particle>();
-        quadTree.retrieve(A, mayCollidings);
+        broadPhase.retrieve(A, mayCollidings);
         return mayCollidings;
     }
 
@@ -275,7 +978,7 @@ public class ContactEngine implements Cloneable
     public Set<Particle> getCollisionsQTSet(sRectangle rec)
     {
         Set<Particle> mayCollidings = new HashSet<Particle>();
-        quadTree.retrieve(rec, mayCollidings);
+        broadPhase.retrieve(rec, mayCollidings);
         return mayCollidings;
     }
 
@@ -287,7 +990,7 @@ public class ContactEngine implements Cloneable
     public ArrayList<Particle> getCollisionsQTList(sRectangle rec)
     {
         ArrayList<Particle> mayCollidings = new ArrayList<Particle>();
-        quadTree.retrieve(rec, mayCollidings);
+        broadPhase.retrieve(rec, mayCollidings);
         return mayCollidings;
     }
 
@@ -420,7 +1123,7 @@ public class ContactEngine implements Cloneable
      */
     public boolean wasColliding(Particle A, Particle B)
     {
-        Set<Particle> ps = savedCollisions.get(A);
+        Set<Particle> ps = getSavedCollisions().get(A);
         return ps != null && ps.contains(B);
     }
 
@@ -431,7 +1134,7 @@ public class ContactEngine implements Cloneable
      */
     public boolean wasColliding(Particle A)
     {
-        Set<Particle> ps = savedCollisions.get(A);
+        Set<Particle> ps = getSavedCollisions().get(A);
         return ps != null && ps.size() != 0;
     }
 
@@ -442,7 +1145,7 @@ public class ContactEngine implements Cloneable
      */
     public Set<Particle> getWereCollidingWith(Particle A)
     {
-        return savedCollisions.get(A);
+        return getSavedCollisions().get(A);
     }
 
     /**
@@ -2,58 +2,330 @@ package org.cora.physics.collision;
 
 import org.cora.maths.*;
 import org.cora.maths.collision.CollisionDetector;
+import org.cora.physics.entities.FormCache;
 import org.cora.physics.entities.Particle;
 
 import java.util.ArrayList;
 
 public class ContactGenerator
 {
-    public static float THRESHOLD_SIDE_DETECTION = 0.1f;
+    // Configuration used when none is given, never modified
+    private final static ContactConfig DEFAULT_CONFIG = new ContactConfig();
+
+    // Sign of perpendicular vector given by maths library
+    private final static float PERPENDICULAR_SIGN = new Vector2D(1, 0).getPerpendicular().y;
+
+    private final static ThreadLocal<ContactWorkspace> WORKSPACES = new ThreadLocal<ContactWorkspace>()
+    {
+        @Override
+        protected ContactWorkspace initialValue()
+        {
+            return new ContactWorkspace();
+        }
+    };
 
     public static boolean generateContacts(Particle A, Particle B,
             ArrayList<Contact> contacts, float dt)
     {
-        if (A.containsNoCollision(B))
+        return generateContacts(A, B, contacts, DEFAULT_CONFIG, dt);
+    }
+
+    public static boolean generateContacts(Particle A, Particle B,
+            ArrayList<Contact> contacts, ContactConfig config, float dt)
+    {
+        if (!A.shouldCollide(B))
+            return false;
+
+        ContactManifold manifold = new ContactManifold(A, B);
+        if (!generateContacts(manifold, config, dt))
             return false;
 
-        Vector2D push = new Vector2D();
-        FloatA t = new FloatA(dt);
+        for (int i = 0; i < manifold.size(); i++)
+        {
+            contacts.add(manifold.get(i));
+        }
+        return true;
+    }
+
+    /**
+     * Generate contacts of a pair in its manifold
+     * Contacts found again with the same feature are reused
+     * Uses the workspace of the calling thread, nothing is allocated by contact generation
+     * @param manifold manifold of the pair
+     * @param config configuration of the engine
+     * @param dt time since last update
+     * @return true if elements are colliding
+     */
+    public static boolean generateContacts(ContactManifold manifold, ContactConfig config, float dt)
+    {
+        manifold.begin();
+        boolean isColliding = findManifoldContacts(manifold, config, WORKSPACES.get(), dt);
+        if (!isColliding)
+            manifold.discard();
+        manifold.end();
+        return isColliding;
+    }
+
+    private static boolean findManifoldContacts(ContactManifold manifold, ContactConfig config,
+            ContactWorkspace workspace, float dt)
+    {
+        Particle A = manifold.getA();
+        Particle B = manifold.getB();
+
+        Vector2D push = workspace.push;
+        FloatA t = workspace.t;
+        push.set(0, 0);
+        t.v = dt;
 
         if (isColliding(A, B, push, t))
         {
             // Find contacts
-            ArrayList<Vector2D> contactsA = findContacts(A, push, t.v);
-            ArrayList<Vector2D> contactsB = findContacts(B, push.multiply(-1),
-                    t.v);
+            ContactWorkspace.SupportPoints supportA = workspace.supportA;
+            ContactWorkspace.SupportPoints supportB = workspace.supportB;
+            float threshold = config.getThresholdSideDetection();
+            findSupportPoints(A, push.x, push.y, threshold, workspace, supportA);
+            findSupportPoints(B, -push.x, -push.y, threshold, workspace, supportB);
 
-            if (!analyseContacts(A, B, contactsA, contactsB, contacts))
+            if (!analyseContacts(supportA, supportB, workspace, manifold))
                 return false;
 
-            Vector2D n = push.multiply(-1);
-            for (int i = 0; i < contacts.size(); i++)
+            float nx = -push.x, ny = -push.y;
+            for (int i = 0; i < manifold.size(); i++)
             {
-                contacts.get(i).setContactNormal(n);
-                contacts.get(i).setPenetration(t.v);
-                contacts.get(i).setIsNotSide(contactsA.size() != 2 || contactsB.size() != 2);
+                manifold.get(i).setContactNormal(nx, ny);
+                manifold.get(i).setPenetration(t.v);
+                manifold.get(i).setIsNotSide(supportA.size != 2 || supportB.size != 2);
             }
 
             ContactInformation information = A.getContactInformation(B);
-            if (information != null)
+            for (int i = 0; i < manifold.size(); i++)
             {
-                for (int i = 0; i < contacts.size(); i++)
-                {
-                    contacts.get(i).set(information);
-                }
+                manifold.get(i).set(config);
+                if (information != null)
+                    manifold.get(i).set(information);
             }
             return true;
         }
         return false;
     }
 
+    /**
+     * Find support points of an element along push axis
+     * Same points as findContacts, points are taken at current time like findContacts
+     * Vertices are read from the form cache of the element, built once each time it moves
+     * @param p element
+     * @param pushX push axis x
+     * @param pushY push axis y
+     * @param threshold threshold to accept two points as a side
+     * @param workspace scratch data
+     * @param support filled with support points
+     */
+    private static void findSupportPoints(Particle p, float pushX, float pushY, float threshold,
+            ContactWorkspace workspace, ContactWorkspace.SupportPoints support)
+    {
+        support.size = 0;
+        Form A = p.getForm();
+
+        if (A instanceof Circle)
+        {
+            Circle cA = (Circle) A;
+            Vector2D center = cA.getCenter();
+            support.add(0, center.x - pushX * cA.getRadius(), center.y - pushY * cA.getRadius(), 0);
+            support.features[0] = 0;
+            support.size = 1;
+            return;
+        }
+
+        FormCache cache = p.getFormCache();
+        if (cache == null)
+            return;
+
+        // Push axis in form space
+        float pushOX = cache.i00 * pushX + cache.i01 * pushY;
+        float pushOY = cache.i10 * pushX + cache.i11 * pushY;
+
+        int size = cache.size;
+        float scalars[] = workspace.getScalars(size);
+        float dmin = Float.MAX_VALUE;
+
+        //On cherche le point minimum par rapport au vecteur
+        for (int i = 0; i < size; i++)
+        {
+            scalars[i] = cache.localX[i] * pushOX + cache.localY[i] * pushOY;
+            if (i == 0 || scalars[i] < dmin)
+                dmin = scalars[i];
+        }
+
+        float perpX = -PERPENDICULAR_SIGN * pushOY;
+        float perpY = PERPENDICULAR_SIGN * pushOX;
+
+        //On regarde s'il y a deux points a peu près au meme niveau
+        for (int i = 0; i < size; i++)
+        {
+            if (scalars[i] < dmin + threshold)
+            {
+                float cx = cache.x[i];
+                float cy = cache.y[i];
+                float fSide = cx * perpX + cy * perpY;
+
+                //On prend les deux points les plus éloignés
+                if (support.size < 2)
+                {
+                    support.add(support.size, cx, cy, fSide);
+                    support.features[support.size] = i;
+                    support.size++;
+
+                    if (support.size > 1 && support.side[0] > support.side[1])
+                        support.swap();
+                }
+                else if (fSide < support.side[0]) //< min
+                {
+                    support.add(0, cx, cy, fSide);
+                    support.features[0] = i;
+                }
+                else if (fSide > support.side[1]) //> max
+                {
+                    support.add(1, cx, cy, fSide);
+                    support.features[1] = i;
+                }
+            }
+        }
+    }
+
+    private static boolean analyseContacts(ContactWorkspace.SupportPoints supportA,
+            ContactWorkspace.SupportPoints supportB, ContactWorkspace workspace,
+            ContactManifold manifold)
+    {
+        if (supportA.size == 0 || supportB.size == 0)
+            return false;
+        if (supportA.size == 1 && supportB.size == 2)
+        {
+            projectOnSegment(supportA.x[0], supportA.y[0], supportB, workspace);
+            Contact contact = manifold.add(feature(0, supportA.features[0], edge(supportB.features)));
+            contact.setC(supportA.x[0], supportA.y[0], workspace.projectionX, workspace.projectionY);
+        }
+        else if (supportA.size == 2 && supportB.size == 1)
+        {
+            projectOnSegment(supportB.x[0], supportB.y[0], supportA, workspace);
+            Contact contact = manifold.add(feature(1, supportB.features[0], edge(supportA.features)));
+            contact.setC(workspace.projectionX, workspace.projectionY, supportB.x[0], supportB.y[0]);
+        }
+        else if (supportA.size == 2 && supportB.size == 2)
+        {
+            if (!handleEdgeToEdge(supportA, supportB, workspace, manifold))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean handleEdgeToEdge(ContactWorkspace.SupportPoints supportA,
+            ContactWorkspace.SupportPoints supportB, ContactWorkspace workspace,
+            ContactManifold manifold)
+    {
+        float edgeX = supportA.x[1] - supportA.x[0];
+        float edgeY = supportA.y[1] - supportA.y[0];
+
+        float min0 = 0;
+        float max0 = edgeX * edgeX + edgeY * edgeY;
+
+        float min1 = (supportB.x[0] - supportA.x[0]) * edgeX + (supportB.y[0] - supportA.y[0]) * edgeY;
+        float max1 = (supportB.x[1] - supportA.x[0]) * edgeX + (supportB.y[1] - supportA.y[0]) * edgeY;
+
+        if (min1 > max1)
+        {
+            float temp = max1;
+            max1 = min1;
+            min1 = temp;
+            supportB.swap();
+        }
+
+        if (min0 > max1 || min1 > max0)
+            return false;
+
+        int edgeA = edge(supportA.features);
+        int edgeB = edge(supportB.features);
+
+        // Projection of the colliding point on the opposite side
+        if (min0 > min1)
+        {
+            projectOnSegment(supportA.x[0], supportA.y[0], supportB, workspace);
+            Contact contact = manifold.add(feature(0, supportA.features[0], edgeB));
+            contact.setC(supportA.x[0], supportA.y[0], workspace.projectionX, workspace.projectionY);
+        }
+        else
+        {
+            projectOnSegment(supportB.x[0], supportB.y[0], supportA, workspace);
+            Contact contact = manifold.add(feature(1, supportB.features[0], edgeA));
+            contact.setC(workspace.projectionX, workspace.projectionY, supportB.x[0], supportB.y[0]);
+        }
+
+        if (max0 != min0 && max1 != min1)
+        {
+            if (max0 < max1)
+            {
+                projectOnSegment(supportA.x[1], supportA.y[1], supportB, workspace);
+                Contact contact = manifold.add(feature(0, supportA.features[1], edgeB));
+                contact.setC(supportA.x[1], supportA.y[1], workspace.projectionX, workspace.projectionY);
+            }
+            else
+            {
+                projectOnSegment(supportB.x[1], supportB.y[1], supportA, workspace);
+                Contact contact = manifold.add(feature(1, supportB.features[1], edgeA));
+                contact.setC(workspace.projectionX, workspace.projectionY, supportB.x[1], supportB.y[1]);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Project a point on the segment of two support points, result is stored in workspace
+     */
+    private static void projectOnSegment(float px, float py, ContactWorkspace.SupportPoints segment,
+            ContactWorkspace workspace)
+    {
+        float edgeX = segment.x[1] - segment.x[0];
+        float edgeY = segment.y[1] - segment.y[0];
+        float magnitude = (float) Math.sqrt(edgeX * edgeX + edgeY * edgeY);
+        if (magnitude == 0)
+        {
+            workspace.projectionX = segment.x[0];
+            workspace.projectionY = segment.y[0];
+            return;
+        }
+
+        edgeX /= magnitude;
+        edgeY /= magnitude;
+        float fProjection = edgeX * (px - segment.x[0]) + edgeY * (py - segment.y[0]);
+
+        if (fProjection < 0)
+            fProjection = 0;
+        if (fProjection > magnitude)
+            fProjection = magnitude;
+        workspace.projectionX = edgeX * fProjection + segment.x[0];
+        workspace.projectionY = edgeY * fProjection + segment.y[0];
+    }
+
+    /**
+     * Feature of a contact, vertex of one element projected on a feature of the other
+     * @param side 0 if vertex belongs to A, 1 if it belongs to B
+     * @param vertex vertex index
+     * @param other feature index of the other element
+     * @return feature
+     */
+    private static int feature(int side, int vertex, int other)
+    {
+        return ((other & 0x7FFF) << 16) | ((vertex & 0x7FFF) << 1) | side;
+    }
+
+    private static int edge(int features[])
+    {
+        return Math.min(features[0], features[1]);
+    }
+
     public static boolean isColliding(Particle A, Particle B, Vector2D push,
             FloatA t)
     {
-        return CollisionDetector.isCollidingOptimised(A.getForm(), B.getForm(), A.getCircleBound(), B.getCircleBound(),
+        return CollisionDetector.isCollidingOptimised(A.getForm(), B.getForm(), A.getSavedCircleBound(), B.getSavedCircleBound(),
                 A.getVelocity(), B.getVelocity(), push, t);
     }
 
@@ -266,7 +538,7 @@ public class ContactGenerator
             }
         }
 
-        float threshold = THRESHOLD_SIDE_DETECTION;
+        float threshold = ContactConfig.DEFAULT_THRESHOLD_SIDE_DETECTION;
         ArrayList<Float> s = new ArrayList<Float>(2);
         Vector2D perp = pushOA.getPerpendicular();
 
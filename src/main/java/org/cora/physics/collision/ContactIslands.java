@@ -0,0 +1,248 @@
+package org.cora.physics.collision;
+
+import org.cora.physics.Engine.PairSet;
+import org.cora.physics.entities.Particle;
+
+import java.util.Arrays;
+
+/**
+ * Split broad phase pairs in islands
+ * An island is a group of pairs linked by moving elements
+ * Elements with no mass do not link islands, two islands never share a moving element
+ * Every pair links its elements, islands are as small as the pairs given by the broad phase
+ * Broad phases only give pairs with overlapping bounds, one element can not merge the whole world in one island
+ * Pairs can not be left out, contacts are found with velocities over the step and may join elements
+ * whose bounds do not overlap yet
+ */
+public class ContactIslands
+{
+    // Union find on broad phase ids
+    private int[] parent;
+    private int[] size;
+
+    // Island of each root and of each pair
+    private int[] rootIsland;
+    private int[] pairRoot;
+
+    // Pairs sorted by island
+    private int[] islandStart;
+    private int[] islandBodies;
+    private int[] islandPairs;
+    private int[] islandCursor;
+    private int islandCount;
+
+    public ContactIslands()
+    {
+        parent = new int[64];
+        size = new int[64];
+        rootIsland = new int[64];
+        pairRoot = new int[64];
+        islandStart = new int[65];
+        islandBodies = new int[64];
+        islandPairs = new int[64];
+        islandCursor = new int[64];
+        islandCount = 0;
+    }
+
+    /**
+     * Build islands of pairs
+     * @param pairs pairs found by broad phase, elements of each pair have overlapping bounds
+     */
+    public void build(PairSet pairs)
+    {
+        int n = pairs.size();
+        islandCount = 0;
+        if (n == 0)
+        {
+            islandStart[0] = 0;
+            return;
+        }
+
+        int maxId = 0;
+        for (int i = 0; i < n; i++)
+        {
+            long key = pairs.getKey(i);
+            maxId = Math.max(maxId, Math.max(PairSet.getIdA(key), PairSet.getIdB(key)));
+        }
+        ensureIdCapacity(maxId + 1);
+        ensurePairCapacity(n);
+
+        for (int i = 0; i < n; i++)
+        {
+            long key = pairs.getKey(i);
+            reset(PairSet.getIdA(key));
+            reset(PairSet.getIdB(key));
+        }
+
+        for (int i = 0; i < n; i++)
+        {
+            if (isMoving(pairs.getA(i)) && isMoving(pairs.getB(i)))
+            {
+                long key = pairs.getKey(i);
+                union(PairSet.getIdA(key), PairSet.getIdB(key));
+            }
+        }
+
+        // Island of a pair is the island of its moving element
+        for (int i = 0; i < n; i++)
+        {
+            long key = pairs.getKey(i);
+            int id = isMoving(pairs.getA(i)) ? PairSet.getIdA(key) : PairSet.getIdB(key);
+            int root = find(id);
+            pairRoot[i] = root;
+            rootIsland[root] = -1;
+        }
+
+        for (int i = 0; i < n; i++)
+        {
+            int root = pairRoot[i];
+            if (rootIsland[root] == -1)
+            {
+                ensureIslandCapacity(islandCount + 1);
+                rootIsland[root] = islandCount;
+                islandBodies[islandCount] = size[root];
+                islandStart[islandCount + 1] = 0;
+                islandCount++;
+            }
+            islandStart[rootIsland[root] + 1]++;
+        }
+
+        islandStart[0] = 0;
+        for (int k = 0; k < islandCount; k++)
+        {
+            islandStart[k + 1] += islandStart[k];
+        }
+
+        // Stable sort, pairs keep their order inside an island
+        for (int k = 0; k < islandCount; k++)
+        {
+            islandCursor[k] = islandStart[k];
+        }
+        for (int i = 0; i < n; i++)
+        {
+            int k = rootIsland[pairRoot[i]];
+            islandPairs[islandCursor[k]++] = i;
+        }
+    }
+
+    public int getIslandCount()
+    {
+        return islandCount;
+    }
+
+    /**
+     * Get index of first pair of an island in island pairs
+     * @param island island index
+     * @return start index
+     */
+    public int getStart(int island)
+    {
+        return islandStart[island];
+    }
+
+    /**
+     * Get index after last pair of an island in island pairs
+     * @param island island index
+     * @return end index
+     */
+    public int getEnd(int island)
+    {
+        return islandStart[island + 1];
+    }
+
+    /**
+     * Get pair index in broad phase pairs
+     * @param i index between start and end of an island
+     * @return pair index
+     */
+    public int getPair(int i)
+    {
+        return islandPairs[i];
+    }
+
+    /**
+     * Get number of moving elements in an island
+     * @param island island index
+     * @return number of elements
+     */
+    public int getBodyCount(int island)
+    {
+        return islandBodies[island];
+    }
+
+    /**
+     * Elements with mass link islands, sleeping ones too since they can be woken up
+     * @param p element
+     * @return true if the element can be moved by contacts
+     */
+    static boolean isMoving(Particle p)
+    {
+        return p.getInverseMass() > 0;
+    }
+
+    // Union find
+    private void reset(int id)
+    {
+        parent[id] = id;
+        size[id] = 1;
+    }
+
+    private int find(int id)
+    {
+        while (parent[id] != id)
+        {
+            parent[id] = parent[parent[id]];
+            id = parent[id];
+        }
+        return id;
+    }
+
+    private void union(int a, int b)
+    {
+        a = find(a);
+        b = find(b);
+        if (a == b)
+            return;
+
+        if (size[a] < size[b])
+        {
+            int temp = a;
+            a = b;
+            b = temp;
+        }
+        parent[b] = a;
+        size[a] += size[b];
+    }
+
+    private void ensureIdCapacity(int capacity)
+    {
+        if (capacity <= parent.length)
+            return;
+
+        int newCapacity = Math.max(capacity, parent.length * 2);
+        parent = new int[newCapacity];
+        size = new int[newCapacity];
+        rootIsland = new int[newCapacity];
+    }
+
+    private void ensurePairCapacity(int capacity)
+    {
+        if (capacity <= pairRoot.length)
+            return;
+
+        int newCapacity = Math.max(capacity, pairRoot.length * 2);
+        pairRoot = new int[newCapacity];
+        islandPairs = new int[newCapacity];
+    }
+
+    private void ensureIslandCapacity(int capacity)
+    {
+        if (capacity < islandBodies.length)
+            return;
+
+        int newCapacity = Math.max(capacity + 1, islandBodies.length * 2);
+        islandBodies = Arrays.copyOf(islandBodies, newCapacity);
+        islandCursor = new int[newCapacity];
+        islandStart = Arrays.copyOf(islandStart, newCapacity + 1);
+    }
+}
@@ -0,0 +1,201 @@
+package org.cora.physics.collision;
+
+import org.cora.physics.entities.Particle;
+
+import java.util.Arrays;
+
+/**
+ * Contacts of a pair of elements kept between steps
+ * Each contact is identified by a feature, a contact found again with the same feature is reused
+ * and keeps its accumulated impulses
+ */
+public class ContactManifold
+{
+    public final static int MAX_CONTACTS = 2;
+
+    private Particle A, B;
+
+    // Contacts of current generation
+    private Contact[] contacts;
+    private int[] features;
+    private int size;
+
+    // Contacts of last generation, not matched yet
+    private Contact[] lastContacts;
+    private int[] lastFeatures;
+    private int lastSize;
+
+    // Contacts that can be reused
+    private Contact[] spare;
+    private int spareCount;
+
+    private int step;
+
+    public ContactManifold(Particle A, Particle B)
+    {
+        this.A = A;
+        this.B = B;
+        contacts = new Contact[MAX_CONTACTS];
+        features = new int[MAX_CONTACTS];
+        lastContacts = new Contact[MAX_CONTACTS];
+        lastFeatures = new int[MAX_CONTACTS];
+        spare = new Contact[MAX_CONTACTS * 2];
+        size = 0;
+        lastSize = 0;
+        spareCount = 0;
+        step = 0;
+    }
+
+    public Particle getA()
+    {
+        return A;
+    }
+
+    public Particle getB()
+    {
+        return B;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public Contact get(int i)
+    {
+        return contacts[i];
+    }
+
+    public int getFeature(int i)
+    {
+        return features[i];
+    }
+
+    /**
+     * Get last step where the pair was tested
+     * @return step
+     */
+    public int getStep()
+    {
+        return step;
+    }
+
+    public void setStep(int step)
+    {
+        this.step = step;
+    }
+
+    /**
+     * Use the manifold for another pair, all contacts are dropped
+     * @param A first element
+     * @param B second element
+     */
+    public void reset(Particle A, Particle B)
+    {
+        this.A = A;
+        this.B = B;
+        Arrays.fill(contacts, null);
+        Arrays.fill(lastContacts, null);
+        Arrays.fill(spare, null);
+        size = 0;
+        lastSize = 0;
+        spareCount = 0;
+        step = 0;
+    }
+
+    /**
+     * Start a new generation of contacts
+     * Current contacts can be matched again until end is called
+     */
+    public void begin()
+    {
+        Contact[] tempContacts = lastContacts;
+        lastContacts = contacts;
+        contacts = tempContacts;
+
+        int[] tempFeatures = lastFeatures;
+        lastFeatures = features;
+        features = tempFeatures;
+
+        lastSize = size;
+        size = 0;
+    }
+
+    /**
+     * Add a contact of current generation
+     * Contact of last generation with the same feature is reused with its impulses
+     * Contact data other than impulses, coefficients included, must be set again
+     * @param feature contact feature
+     * @return contact or null if manifold is full
+     */
+    public Contact add(int feature)
+    {
+        if (size == MAX_CONTACTS)
+            return null;
+
+        Contact contact = null;
+        for (int i = 0; i < lastSize; i++)
+        {
+            if (lastContacts[i] != null && lastFeatures[i] == feature)
+            {
+                contact = lastContacts[i];
+                lastContacts[i] = null;
+                break;
+            }
+        }
+
+        if (contact == null)
+        {
+            if (spareCount > 0)
+            {
+                contact = spare[--spareCount];
+                spare[spareCount] = null;
+            }
+            else
+            {
+                contact = new Contact(A, B);
+            }
+            contact.setImpulses(0, 0);
+        }
+
+        contacts[size] = contact;
+        features[size] = feature;
+        size++;
+        return contact;
+    }
+
+    /**
+     * Remove contacts of current generation, used when elements are not colliding
+     */
+    public void discard()
+    {
+        for (int i = 0; i < size; i++)
+        {
+            recycle(contacts[i]);
+            contacts[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * End current generation, contacts of last generation not found again are recycled
+     */
+    public void end()
+    {
+        for (int i = 0; i < lastSize; i++)
+        {
+            if (lastContacts[i] != null)
+            {
+                recycle(lastContacts[i]);
+                lastContacts[i] = null;
+            }
+        }
+        lastSize = 0;
+    }
+
+    private void recycle(Contact contact)
+    {
+        if (spareCount < spare.length)
+            spare[spareCount++] = contact;
+    }
+}
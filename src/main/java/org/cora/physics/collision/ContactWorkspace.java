@@ -0,0 +1,65 @@
+package org.cora.physics.collision;
+
+import org.cora.maths.FloatA;
+import org.cora.maths.Vector2D;
+
+/**
+ * Scratch data used by contact generation
+ * One workspace is used by each thread, nothing is allocated while generating contacts
+ */
+public class ContactWorkspace
+{
+    /**
+     * Support points of one element, at most two
+     */
+    public static class SupportPoints
+    {
+        public final float x[] = new float[2];
+        public final float y[] = new float[2];
+        public final int features[] = new int[2];
+        public int size;
+
+        // Position of each point along the side, used to keep the two farthest points
+        final float side[] = new float[2];
+
+        void add(int i, float px, float py, float fSide)
+        {
+            x[i] = px;
+            y[i] = py;
+            side[i] = fSide;
+        }
+
+        void swap()
+        {
+            float tempX = x[0], tempY = y[0], tempSide = side[0];
+            int tempFeature = features[0];
+            x[0] = x[1];
+            y[0] = y[1];
+            side[0] = side[1];
+            features[0] = features[1];
+            x[1] = tempX;
+            y[1] = tempY;
+            side[1] = tempSide;
+            features[1] = tempFeature;
+        }
+    }
+
+    final Vector2D push = new Vector2D();
+    final FloatA t = new FloatA();
+
+    final SupportPoints supportA = new SupportPoints();
+    final SupportPoints supportB = new SupportPoints();
+
+    // Projection of vertices on push axis
+    float scalars[] = new float[8];
+
+    // Result of a projection on a segment
+    float projectionX, projectionY;
+
+    float[] getScalars(int size)
+    {
+        if (scalars.length < size)
+            scalars = new float[Math.max(size, scalars.length * 2)];
+        return scalars;
+    }
+}
@@ -0,0 +1,36 @@
+package org.cora.physics.entities;
+
+/**
+ * Damping factors of one dt, computed once and given to all elements integrated with this dt
+ * Each engine keeps the factors of its last dt, they are only computed again when its dt changes
+ */
+public final class DampingFactors
+{
+    final float dt;
+    final float linear;
+    final float angular;
+
+    public DampingFactors(float dt)
+    {
+        this.dt = dt;
+        linear = (float) StrictMath.pow(Particle.damping, dt);
+        angular = (float) StrictMath.pow(RigidBody.dampingRotation, dt);
+    }
+
+    /**
+     * Get damping factors of a dt, reusing given factors if they have the same dt
+     * Factors are immutable, they can be read by several threads
+     * @param factors last factors, may be null
+     * @param dt time of the step
+     * @return factors of dt
+     */
+    public static DampingFactors get(DampingFactors factors, float dt)
+    {
+        return (factors != null && factors.dt == dt) ? factors : new DampingFactors(dt);
+    }
+
+    public float getDt()
+    {
+        return dt;
+    }
+}
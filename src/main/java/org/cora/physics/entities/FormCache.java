@@ -0,0 +1,117 @@
+package org.cora.physics.entities;
+
+import org.cora.maths.Form;
+import org.cora.maths.Matrix2;
+import org.cora.maths.Vector2D;
+
+/**
+ * World space vertices and edge normals of the form of an element
+ * Built again only when the element has been transformed since last build
+ * Fields must only be read, they are written by the element
+ */
+public class FormCache
+{
+    // Transform version of the element when the cache was built
+    int version;
+
+    public int size;
+
+    // Vertices in form space and in world space
+    public float localX[], localY[];
+    public float x[], y[];
+
+    // Outward normal of edge from vertex i to vertex i + 1
+    public float normalX[], normalY[];
+
+    // Orientation matrix and its inverse
+    public float m00, m01, m10, m11;
+    public float i00, i01, i10, i11;
+
+    public float centerX, centerY;
+
+    private final Vector2D axis = new Vector2D();
+
+    FormCache()
+    {
+        version = -1;
+        size = 0;
+        allocate(4);
+    }
+
+    /**
+     * Compute vertices and normals of a form
+     * @param form polygon form
+     */
+    void update(Form form)
+    {
+        size = form.size();
+        if (x.length < size)
+            allocate(size);
+
+        // Orientation matrix coefficients, the maths library only gives the matrix as an object
+        Matrix2 orientation = form.getOrientation().convertMatrix2();
+        axis.set(1, 0);
+        Vector2D column0 = orientation.multiply(axis);
+        axis.set(0, 1);
+        Vector2D column1 = orientation.multiply(axis);
+        m00 = column0.x;
+        m10 = column0.y;
+        m01 = column1.x;
+        m11 = column1.y;
+
+        float det = m00 * m11 - m01 * m10;
+        i00 = m11 / det;
+        i01 = -m01 / det;
+        i10 = -m10 / det;
+        i11 = m00 / det;
+
+        Vector2D center = form.getCenter();
+        centerX = center.x;
+        centerY = center.y;
+
+        for (int i = 0; i < size; i++)
+        {
+            Vector2D local = form.getLocal(i);
+            localX[i] = local.x;
+            localY[i] = local.y;
+            x[i] = centerX + m00 * local.x + m01 * local.y;
+            y[i] = centerY + m10 * local.x + m11 * local.y;
+        }
+
+        for (int i = 0; i < size; i++)
+        {
+            int next = (i + 1 == size) ? 0 : i + 1;
+            float edgeX = x[next] - x[i];
+            float edgeY = y[next] - y[i];
+            float magnitude = (float) Math.sqrt(edgeX * edgeX + edgeY * edgeY);
+            if (magnitude == 0)
+            {
+                normalX[i] = 0;
+                normalY[i] = 0;
+                continue;
+            }
+
+            float nx = edgeY / magnitude;
+            float ny = -edgeX / magnitude;
+
+            // Normal points away from center
+            if (nx * (x[i] - centerX) + ny * (y[i] - centerY) < 0)
+            {
+                nx = -nx;
+                ny = -ny;
+            }
+            normalX[i] = nx;
+            normalY[i] = ny;
+        }
+    }
+
+    private void allocate(int capacity)
+    {
+        localX = new float[capacity];
+        localY = new float[capacity];
+        x = new float[capacity];
+        y = new float[capacity];
+        normalX = new float[capacity];
+        normalY = new float[capacity];
+    }
+}
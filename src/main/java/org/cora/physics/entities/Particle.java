@@ -2,12 +2,15 @@ package org.cora.physics.entities;
 
 import org.cora.maths.Circle;
 import org.cora.maths.Form;
+import org.cora.maths.RoundForm;
 import org.cora.maths.Vector2D;
 import org.cora.maths.sRectangle;
 import org.cora.physics.collision.ContactInformation;
 import org.cora.physics.entities.material.MaterialType;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
@@ -18,19 +21,33 @@ import java.util.Set;
 public class Particle implements Cloneable
 {
     protected boolean            isAwake;
+    protected float              sleepTime;
     protected final static float damping = 0.999f;
 
     protected Vector2D           position, velocity, acceleration,
             lastAcceleration;
 
     protected Vector2D           forceAccum;
+    protected Vector2D           previousPosition;
     protected float              inverseMass;
 
     protected Form               form;
     protected MaterialType       materialType;
+    protected int                collisionCategory;
+    protected int                collisionMask;
+    protected int                collisionGroup;
+    // Allocated when the first no collision element is added
     protected Set<Particle>      noCollisionElements;
     protected sRectangle savedSRectangleBound;
     protected Circle savedCircleBound;
+    // Saved bounds must be computed again, set when the element moves
+    protected boolean boundsDirty;
+    // Form must be moved to position and rotated by pending rotation
+    protected boolean formDirty;
+    protected float pendingRotation;
+    // Incremented each time the element is transformed
+    protected int transformVersion;
+    private FormCache formCache;
 
     public Particle()
     {
@@ -39,11 +56,21 @@ public class Particle implements Cloneable
         acceleration = new Vector2D();
         lastAcceleration = new Vector2D();
         forceAccum = new Vector2D();
-        noCollisionElements = new HashSet<Particle>();
+        previousPosition = new Vector2D();
+        noCollisionElements = null;
+        collisionCategory = 1;
+        collisionMask = -1;
+        collisionGroup = 0;
 
         isAwake = true;
+        sleepTime = 0;
         inverseMass = 0;
         materialType = null;
+        boundsDirty = true;
+        formDirty = false;
+        pendingRotation = 0;
+        transformVersion = 0;
+        formCache = null;
     }
 
     public void set(Particle p)
@@ -53,15 +80,19 @@ public class Particle implements Cloneable
         lastAcceleration.set(p.getLastAcceleration());
         acceleration.set(p.getAcceleration());
         forceAccum.set(p.getForceAccum());
+        previousPosition.set(p.getPreviousPosition());
         materialType = p.getMaterialType();
 
         isAwake = p.isAwake();
+        sleepTime = p.getSleepTime();
         inverseMass = p.getInverseMass();
         if (p.getForm() != null)
             setForm((Form) p.getForm().clone());
 
-        noCollisionElements.clear();
-        noCollisionElements.addAll(getNoCollisionElements());
+        collisionCategory = p.getCollisionCategory();
+        collisionMask = p.getCollisionMask();
+        collisionGroup = p.getCollisionGroup();
+        noCollisionElements = null;
     }
 
 
@@ -103,23 +134,69 @@ public class Particle implements Cloneable
 
     public void integrate(float dt)
     {
-        if (inverseMass <= 0.0f)
+        integrate(dt, new DampingFactors(dt));
+    }
+
+    /**
+     * Integrate with damping factors of dt computed once for all elements
+     * Used by engine, subclasses override this one
+     * @param dt time of the step
+     * @param factors damping factors of dt
+     */
+    public void integrate(float dt, DampingFactors factors)
+    {
+        if (inverseMass <= 0.0f || !isAwake)
             return;
         assert (dt > 0.0f);
         lastAcceleration.set(acceleration);
         acceleration.reset();
 
-        // Integrate position
-        setPosition(position.addScaledVector(velocity, dt));
+        // Integrate position, form is moved when needed
+        position.selfAddScaledVector(velocity, dt);
+        formDirty = true;
+        transformed();
 
         // Integrate Velocity
         acceleration.selfAddScaledVector(forceAccum, inverseMass);
         velocity.selfAddScaledVector(acceleration, dt);
-        velocity.selfMultiply((float) Math.pow(damping, dt));
+        velocity.selfMultiply(factors.linear);
 
         clearAccumulator();
     }
 
+    /**
+     * Move the element without moving its form, form is moved when needed
+     * @param x new position x
+     * @param y new position y
+     * @param turn rotation around position in radians
+     */
+    protected void moveDeferred(float x, float y, float turn)
+    {
+        position.set(x, y);
+        pendingRotation += turn;
+        formDirty = true;
+        transformed();
+    }
+
+    /**
+     * Move and rotate the form to the state of the element if it has been deferred
+     * Done by the engine when bounds are updated, before contact resolution
+     */
+    public void updateForm()
+    {
+        if (!formDirty)
+            return;
+
+        formDirty = false;
+        if (form != null)
+        {
+            form.setPos(position);
+            if (pendingRotation != 0)
+                form.rotateRadians(pendingRotation, position);
+        }
+        pendingRotation = 0;
+    }
+
     public void clearAccumulator()
     {
         forceAccum.reset();
@@ -147,6 +224,8 @@ public class Particle implements Cloneable
 
     public void addForce(Vector2D force)
     {
+        if (!isAwake)
+            setAwake(true);
         forceAccum.selfAdd(force);
     }
 
@@ -163,6 +242,7 @@ public class Particle implements Cloneable
 
     public void setRadians(float radians, Vector2D vec)
     {
+        updateForm();
         float angle = radians - form.getOmega();
         this.rotateRadians(angle, position);
     }
@@ -188,47 +268,61 @@ public class Particle implements Cloneable
     // /////////////////////////////
     public void translate(Vector2D vec)
     {
+        updateForm();
         form.translate(vec);
         position.set(form.getCenter());
+        transformed();
     }
 
     public void translateX(float vecX)
     {
+        updateForm();
         position.translateX(vecX);
         position.set(form.getCenter());
+        transformed();
     }
 
     public void translateY(float vecY)
     {
+        updateForm();
         form.translate(new Vector2D(0, vecY));
         position.set(form.getCenter());
+        transformed();
     }
 
     public void flipH(Vector2D center)
     {
+        updateForm();
         form.flipH(center);
         position.set(form.getCenter());
+        transformed();
     }
 
     public void flipV(Vector2D center)
     {
+        updateForm();
         form.flipV(center);
         position.set(form.getCenter());
+        transformed();
     }
 
     public void scale(float factor, Vector2D center)
     {
+        updateForm();
         if (factor != 0)
             form.scale(factor, center);
         else
             form.scale(0.0001f, center);
         position.set(form.getCenter());
+        transformed();
     }
 
     public void rotateRadians(float radians, Vector2D center)
     {
+        updateForm();
         form.rotateRadians(radians, center);
         position.set(form.getCenter());
+        transformed();
     }
 
     public void setPositionX(float x)
@@ -256,6 +350,7 @@ public class Particle implements Cloneable
 
     public float getScale()
     {
+        updateForm();
         return form.getScale();
     }
 
@@ -264,9 +359,169 @@ public class Particle implements Cloneable
         return isAwake;
     }
 
+    /**
+     * Wake or put to sleep the element
+     * A sleeping element is not integrated and keeps no velocity
+     * @param isAwake new state
+     */
     public void setAwake(boolean isAwake)
     {
         this.isAwake = isAwake;
+        sleepTime = 0;
+
+        if (!isAwake)
+        {
+            velocity.reset();
+            acceleration.reset();
+            clearAccumulator();
+        }
+    }
+
+    /**
+     * Update time spent below sleep thresholds and put to sleep if needed
+     * @param dt time since last update
+     * @param linearThreshold max speed to sleep
+     * @param angularThreshold max rotation speed to sleep
+     * @param timeToSleep time below thresholds before sleeping
+     * @return true if the element has been put to sleep
+     */
+    public boolean updateSleep(float dt, float linearThreshold, float angularThreshold, float timeToSleep)
+    {
+        updateSleepTime(dt, linearThreshold, angularThreshold);
+        return trySleep(timeToSleep);
+    }
+
+    /**
+     * Update time spent below sleep thresholds, without putting to sleep
+     * @param dt time since last update
+     * @param linearThreshold max speed to sleep
+     * @param angularThreshold max rotation speed to sleep
+     */
+    public void updateSleepTime(float dt, float linearThreshold, float angularThreshold)
+    {
+        if (!isAwake || inverseMass <= 0.0f)
+            return;
+
+        if (isSlow(linearThreshold, angularThreshold))
+            sleepTime += dt;
+        else
+            sleepTime = 0;
+    }
+
+    /**
+     * Put to sleep if time spent below sleep thresholds is long enough
+     * @param timeToSleep time below thresholds before sleeping
+     * @return true if the element has been put to sleep
+     */
+    public boolean trySleep(float timeToSleep)
+    {
+        if (!isAwake || inverseMass <= 0.0f || sleepTime < timeToSleep)
+            return false;
+
+        setAwake(false);
+        return true;
+    }
+
+    /**
+     * Lower time spent below sleep thresholds, used to share the time of the slowest element of a group
+     * @param sleepTime max time
+     */
+    public void limitSleepTime(float sleepTime)
+    {
+        if (this.sleepTime > sleepTime)
+            this.sleepTime = sleepTime;
+    }
+
+    /**
+     * Test if the element moves slowly enough to sleep
+     * @param linearThreshold max speed
+     * @param angularThreshold max rotation speed
+     * @return test result
+     */
+    protected boolean isSlow(float linearThreshold, float angularThreshold)
+    {
+        return velocity.getSqMagnitude() <= linearThreshold * linearThreshold;
+    }
+
+    /**
+     * Get time spent below sleep thresholds
+     * @return time
+     */
+    public float getSleepTime()
+    {
+        return sleepTime;
+    }
+
+    /**
+     * Save state before a fixed step, used to interpolate between two steps
+     */
+    public void savePreviousState()
+    {
+        previousPosition.set(position);
+    }
+
+    /**
+     * Get position saved before last fixed step
+     * @return previous position
+     */
+    public Vector2D getPreviousPosition()
+    {
+        return previousPosition;
+    }
+
+    /**
+     * Blend position saved before last fixed step and current position
+     * @param alpha 0 for previous position, 1 for current position
+     * @param res filled with interpolated position
+     */
+    public void getInterpolatedPosition(float alpha, Vector2D res)
+    {
+        res.set(previousPosition.x + (position.x - previousPosition.x) * alpha,
+                previousPosition.y + (position.y - previousPosition.y) * alpha);
+    }
+
+    /**
+     * Get number of bytes written by writeState
+     * @return size in bytes
+     */
+    public int getStateSize()
+    {
+        return 13 * 4 + 1;
+    }
+
+    /**
+     * Write physic state of the element at buffer position
+     * Position, velocity, accelerations, accumulators, previous state and awake state are written
+     * @param buffer buffer with at least getStateSize remaining bytes
+     */
+    public void writeState(ByteBuffer buffer)
+    {
+        buffer.putFloat(position.x).putFloat(position.y);
+        buffer.putFloat(velocity.x).putFloat(velocity.y);
+        buffer.putFloat(acceleration.x).putFloat(acceleration.y);
+        buffer.putFloat(lastAcceleration.x).putFloat(lastAcceleration.y);
+        buffer.putFloat(forceAccum.x).putFloat(forceAccum.y);
+        buffer.putFloat(previousPosition.x).putFloat(previousPosition.y);
+        buffer.putFloat(sleepTime);
+        buffer.put((byte) (isAwake ? 1 : 0));
+    }
+
+    /**
+     * Read physic state written by writeState in place, form is moved to read position
+     * @param buffer buffer at position of the state
+     */
+    public void readState(ByteBuffer buffer)
+    {
+        float x = buffer.getFloat();
+        float y = buffer.getFloat();
+        velocity.set(buffer.getFloat(), buffer.getFloat());
+        acceleration.set(buffer.getFloat(), buffer.getFloat());
+        lastAcceleration.set(buffer.getFloat(), buffer.getFloat());
+        forceAccum.set(buffer.getFloat(), buffer.getFloat());
+        previousPosition.set(buffer.getFloat(), buffer.getFloat());
+        sleepTime = buffer.getFloat();
+        isAwake = buffer.get() != 0;
+        setPosition(x, y);
     }
 
     public float getX()
@@ -286,16 +541,20 @@ public class Particle implements Cloneable
 
     public void setPosition(float x, float y)
     {
+        updateForm();
         this.position.set(x, y);
         if (form != null)
             form.setPos(position);
+        transformed();
     }
 
     public void setPosition(Vector2D position)
     {
+        updateForm();
         this.position.set(position);
         if (form != null)
             form.setPos(position);
+        transformed();
     }
 
     public Vector2D getVelocity()
@@ -338,8 +597,13 @@ public class Particle implements Cloneable
         this.inverseMass = inverseMass;
     }
 
+    /**
+     * Get form of the element, moved to the element state if needed
+     * @return form
+     */
     public Form getForm()
     {
+        updateForm();
         return form;
     }
 
@@ -350,6 +614,9 @@ public class Particle implements Cloneable
     public void setForm(Form form)
     {
         this.form = form;
+        formDirty = false;
+        pendingRotation = 0;
+        transformed();
     }
 
     /**
@@ -358,6 +625,7 @@ public class Particle implements Cloneable
      */
     public sRectangle getSRectangleBound()
     {
+        updateForm();
         return form.getSRectangleBound();
     }
 
@@ -367,6 +635,7 @@ public class Particle implements Cloneable
      */
     public Circle getCircleBound()
     {
+        updateForm();
         return form.getCircleBound();
     }
 
@@ -376,7 +645,7 @@ public class Particle implements Cloneable
      */
     public void addNoCollisionElement(Particle p)
     {
-        noCollisionElements.add(p);
+        addNoCollisionElementFree(p);
         p.addNoCollisionElementFree(this);
     }
 
@@ -386,6 +655,8 @@ public class Particle implements Cloneable
      */
     public void addNoCollisionElementFree(Particle p)
     {
+        if (noCollisionElements == null)
+            noCollisionElements = new HashSet<Particle>();
         noCollisionElements.add(p);
     }
 
@@ -408,6 +679,8 @@ public class Particle implements Cloneable
      */
     public void addNoCollisionElementsFree(Collection<Particle> ps)
     {
+        if (noCollisionElements == null)
+            noCollisionElements = new HashSet<Particle>();
         noCollisionElements.addAll(ps);
     }
 
@@ -417,7 +690,7 @@ public class Particle implements Cloneable
      */
     public void removeNoCollisionElement(Particle p)
     {
-        noCollisionElements.remove(p);
+        removeNoCollisionElementFree(p);
         p.removeNoCollisionElementFree(this);
     }
 
@@ -427,16 +700,17 @@ public class Particle implements Cloneable
      */
     public void removeNoCollisionElementFree(Particle p)
     {
-        noCollisionElements.remove(p);
+        if (noCollisionElements != null)
+            noCollisionElements.remove(p);
     }
 
     /**
      * Get all no colliding elements
-     * @return all elements
+     * @return all elements, empty set if there is none
      */
     public final Set<Particle> getNoCollisionElements()
     {
-        return noCollisionElements;
+        return (noCollisionElements == null) ? Collections.<Particle>emptySet() : noCollisionElements;
     }
 
     /**
@@ -446,7 +720,68 @@ public class Particle implements Cloneable
      */
     public boolean containsNoCollision(Particle p)
     {
-        return noCollisionElements.contains(p);
+        return noCollisionElements != null && noCollisionElements.contains(p);
+    }
+
+    /**
+     * Test if two elements can collide, checked by broad phases before a pair is found
+     * Elements of the same non zero group always collide if the group is positive, never if it is negative
+     * Otherwise each element must have the category of the other one in its mask
+     * No collision elements are then checked
+     * @param p other element
+     * @return test result
+     */
+    public boolean shouldCollide(Particle p)
+    {
+        boolean collide;
+        if (collisionGroup != 0 && collisionGroup == p.collisionGroup)
+            collide = collisionGroup > 0;
+        else
+            collide = (collisionMask & p.collisionCategory) != 0 && (p.collisionMask & collisionCategory) != 0;
+
+        return collide && !containsNoCollision(p);
+    }
+
+    /**
+     * Get categories of the element, one bit by category
+     * @return category bits, 1 by default
+     */
+    public int getCollisionCategory()
+    {
+        return collisionCategory;
+    }
+
+    public void setCollisionCategory(int collisionCategory)
+    {
+        this.collisionCategory = collisionCategory;
+    }
+
+    /**
+     * Get categories the element collides with, one bit by category
+     * @return mask bits, all categories by default
+     */
+    public int getCollisionMask()
+    {
+        return collisionMask;
+    }
+
+    public void setCollisionMask(int collisionMask)
+    {
+        this.collisionMask = collisionMask;
+    }
+
+    /**
+     * Get group of the element, overrides categories between elements of the same group
+     * @return group, 0 for no group
+     */
+    public int getCollisionGroup()
+    {
+        return collisionGroup;
+    }
+
+    public void setCollisionGroup(int collisionGroup)
+    {
+        this.collisionGroup = collisionGroup;
     }
 
     /**
@@ -456,6 +791,77 @@ public class Particle implements Cloneable
     {
         computeSRectangleBound();
         computeCircleBound();
+        boundsDirty = false;
+    }
+
+    /**
+     * Compute saved bounds if the element has moved since they were computed
+     * Called by the engine once per step, after integration
+     */
+    public void updateBounds()
+    {
+        if (boundsDirty && form != null)
+        {
+            computeStoredBounds();
+            getFormCache();
+        }
+    }
+
+    /**
+     * Force saved bounds to be computed again
+     * Needed when the form is changed directly
+     */
+    public void markBoundsDirty()
+    {
+        transformed();
+    }
+
+    /**
+     * Mark saved bounds and form cache as outdated
+     */
+    protected void transformed()
+    {
+        boundsDirty = true;
+        transformVersion++;
+    }
+
+    /**
+     * Get number of transformations of the element, changes each time it moves
+     * @return transform version
+     */
+    public int getTransformVersion()
+    {
+        return transformVersion;
+    }
+
+    /**
+     * Get world space vertices and edge normals of the form
+     * Built again only if the element has been transformed since last call
+     * Cache of moving elements is built by the engine with bounds, before contacts are resolved in parallel
+     * @return cache or null if the form is not a polygon
+     */
+    public FormCache getFormCache()
+    {
+        if (form == null || form instanceof Circle || form instanceof RoundForm)
+            return null;
+
+        if (formCache == null)
+            formCache = new FormCache();
+        if (formCache.version != transformVersion)
+        {
+            formCache.update(getForm());
+            formCache.version = transformVersion;
+        }
+        return formCache;
+    }
+
+    /**
+     * Know if saved bounds must be computed again
+     * @return true if the element has moved since bounds were computed
+     */
+    public boolean isBoundsDirty()
+    {
+        return boundsDirty;
     }
 
     /**
@@ -475,20 +881,22 @@ public class Particle implements Cloneable
     }
 
     /**
-     * Get saved sRectangle bound
+     * Get saved sRectangle bound, computed again if the element has moved
      * @return saved bound
      */
     public sRectangle getSavedSRectangleBound()
     {
+        updateBounds();
         return savedSRectangleBound;
     }
 
     /**
-     * Get saved Circle bound
+     * Get saved Circle bound, computed again if the element has moved
      * @return saved bound
      */
     public Circle getSavedCircleBound()
     {
+        updateBounds();
         return savedCircleBound;
     }
 }
@@ -2,14 +2,17 @@ package org.cora.physics.entities;
 
 import org.cora.maths.Vector2D;
 
+import java.nio.ByteBuffer;
+
 /**
  * Rigid body is a complex physic element with rotation
  */
 public class RigidBody extends Particle
 {
-    private final static float dampingRotation = 0.999f;
+    final static float dampingRotation = 0.999f;
     private float              inverseInertia;
     private float              rotation, torqueAccum;
+    private float              previousOrientation;
 
     @Override
     public void initPhysics()
@@ -72,6 +75,7 @@ public class RigidBody extends Particle
         super.set(rb);
         inverseInertia = rb.getInverseInertia();
         torqueAccum = rb.getTorque();
+        previousOrientation = rb.getPreviousOrientation();
     }
 
     public void setInverseInertiaTensor(float inverseInertia)
@@ -87,26 +91,28 @@ public class RigidBody extends Particle
     }
 
     @Override
-    public void integrate(float dt)
+    public void integrate(float dt, DampingFactors factors)
     {
-        if (inverseMass <= 0.0f)
+        if (inverseMass <= 0.0f || !isAwake)
             return;
         
         lastAcceleration.set(acceleration);
         acceleration.reset();
 
-        // Integrate position
-        setPosition(position.addScaledVector(velocity, dt));
-        rotateRadians(rotation * dt, position);
+        // Integrate position, form is moved and rotated when needed
+        position.selfAddScaledVector(velocity, dt);
+        pendingRotation += rotation * dt;
+        formDirty = true;
+        transformed();
 
         // Integrate Velocity
         acceleration.selfAddScaledVector(forceAccum, inverseMass);
         velocity.selfAddScaledVector(acceleration, dt);
-        velocity.selfMultiply((float) Math.pow(damping, dt));
+        velocity.selfMultiply(factors.linear);
 
         float rotationAcceleration = torqueAccum * inverseInertia;
         rotation += rotationAcceleration * dt;
-        rotation *= (float) Math.pow(dampingRotation, dt);
+        rotation *= factors.angular;
 
         clearAccumulator();
     }
@@ -117,8 +123,91 @@ public class RigidBody extends Particle
         torqueAccum = 0;
     }
 
+    @Override
+    public void setAwake(boolean isAwake)
+    {
+        super.setAwake(isAwake);
+        if (!isAwake)
+            rotation = 0;
+    }
+
+    @Override
+    public void savePreviousState()
+    {
+        super.savePreviousState();
+        if (form != null)
+            previousOrientation = getOrientation();
+    }
+
+    /**
+     * Get orientation saved before last fixed step
+     * @return previous orientation in radians
+     */
+    public float getPreviousOrientation()
+    {
+        return previousOrientation;
+    }
+
+    /**
+     * Blend orientation saved before last fixed step and current orientation
+     * @param alpha 0 for previous orientation, 1 for current orientation
+     * @return interpolated orientation in radians
+     */
+    public float getInterpolatedOrientation(float alpha)
+    {
+        float delta = getOrientation() - previousOrientation;
+
+        // Shortest way between the two orientations
+        if (delta > Math.PI)
+            delta -= 2 * Math.PI;
+        else if (delta < -Math.PI)
+            delta += 2 * Math.PI;
+
+        return previousOrientation + delta * alpha;
+    }
+
+    @Override
+    public int getStateSize()
+    {
+        return super.getStateSize() + 4 * 4;
+    }
+
+    @Override
+    public void writeState(ByteBuffer buffer)
+    {
+        super.writeState(buffer);
+        buffer.putFloat((form != null) ? getOrientation() : 0);
+        buffer.putFloat(rotation);
+        buffer.putFloat(torqueAccum);
+        buffer.putFloat(previousOrientation);
+    }
+
+    @Override
+    public void readState(ByteBuffer buffer)
+    {
+        super.readState(buffer);
+        float orientation = buffer.getFloat();
+        rotation = buffer.getFloat();
+        torqueAccum = buffer.getFloat();
+        previousOrientation = buffer.getFloat();
+
+        if (form != null)
+        {
+            setOrientation(orientation);
+            setPosition(position);
+        }
+    }
+
+    @Override
+    protected boolean isSlow(float linearThreshold, float angularThreshold)
+    {
+        return super.isSlow(linearThreshold, angularThreshold) && Math.abs(rotation) <= angularThreshold;
+    }
+
     public void addForceAtPoint(Vector2D force, Vector2D p)
     {
+        if (!isAwake)
+            setAwake(true);
         forceAccum.selfAdd(force);
         torqueAccum += (p.sub(position)).crossProductZ(force);
     }
@@ -148,7 +237,7 @@ public class RigidBody extends Particle
         this.rotation = rotation;
     }
 
-    public float getOrientation() { return form.getOmega(); };
+    public float getOrientation() { updateForm(); return form.getOmega(); };
 
-    public void setOrientation(float rad) { form.setRadians(rad);}
+    public void setOrientation(float rad) { updateForm(); form.setRadians(rad); transformed(); }
 }
@@ -0,0 +1,372 @@
+package org.cora.physics.entities.material;
+
+import org.cora.physics.collision.ContactInformation;
+
+import java.util.Arrays;
+
+/**
+ * Give an id to each material and store contact information of materials pairs in a dense table
+ * Information of a pair is read with an array index, both orders of a pair share the same information
+ * Pairs with no information are combined from information of each material, if both have one
+ * Tables are never changed once published, each change publishes new tables that readers get at once
+ * Each change copies the whole table, capacity * capacity pairs, use beginEdit and endEdit to publish many changes with one copy
+ * Ids of released materials are given again to new materials
+ */
+public class MaterialRegistry
+{
+    public final static int AVERAGE = 0;
+    public final static int MIN = 1;
+    public final static int MAX = 2;
+    public final static int MULTIPLY = 3;
+    public final static int GEOMETRIC_MEAN = 4;
+
+    /**
+     * Information of pairs, index idA * capacity + idB
+     * Arrays are filled before the table is published and only read after
+     */
+    private static class Table
+    {
+        private final int capacity;
+        private final ContactInformation[] informations;
+        private final ContactInformation[] combined;
+        private final ContactInformation[] materialInformations;
+
+        public Table(int capacity)
+        {
+            this.capacity = capacity;
+            informations = new ContactInformation[capacity * capacity];
+            combined = new ContactInformation[capacity * capacity];
+            materialInformations = new ContactInformation[capacity];
+        }
+    }
+
+    private volatile Table table;
+
+    // Table changed during an edit, published at the end of the edit, guarded by the registry lock
+    private Table pending;
+    private int editDepth;
+
+    // Ids, guarded by the registry lock
+    private boolean[] used;
+    private int[] freeIds;
+    private int freeCount;
+    private int nextId;
+    private int size;
+
+    private int restitutionRule;
+    private int frictionRule;
+    private int sepRule;
+
+    public MaterialRegistry()
+    {
+        this(16);
+    }
+
+    public MaterialRegistry(int capacity)
+    {
+        capacity = Math.max(capacity, 1);
+        table = new Table(capacity);
+        used = new boolean[capacity];
+        freeIds = new int[capacity];
+        freeCount = 0;
+        nextId = 0;
+        size = 0;
+        restitutionRule = MAX;
+        frictionRule = GEOMETRIC_MEAN;
+        sepRule = AVERAGE;
+    }
+
+    /**
+     * Give an id to a new material
+     * @return id
+     */
+    synchronized int register()
+    {
+        int id;
+        if (freeCount > 0)
+        {
+            id = freeIds[--freeCount];
+        }
+        else
+        {
+            if (nextId == current().capacity)
+                commit(copy(current().capacity * 2));
+            id = nextId++;
+        }
+        used[id] = true;
+        size++;
+        return id;
+    }
+
+    /**
+     * Remove information of a material and its pairs, its id can be given to a new material
+     * @param id id of released material
+     */
+    synchronized void release(int id)
+    {
+        if (id < 0 || id >= nextId || !used[id])
+            return;
+
+        Table newTable = editable();
+        newTable.materialInformations[id] = null;
+        for (int i = 0; i < nextId; i++)
+        {
+            newTable.informations[id * newTable.capacity + i] = null;
+            newTable.informations[i * newTable.capacity + id] = null;
+            newTable.combined[id * newTable.capacity + i] = null;
+            newTable.combined[i * newTable.capacity + id] = null;
+        }
+        commit(newTable);
+
+        used[id] = false;
+        freeIds[freeCount++] = id;
+        size--;
+    }
+
+    /**
+     * Get information of a pair of materials
+     * @param idA id of first material
+     * @param idB id of second material
+     * @return information or null if the pair has no information and can not be combined
+     */
+    public ContactInformation get(int idA, int idB)
+    {
+        Table t = table;
+        if (idA < 0 || idB < 0 || idA >= t.capacity || idB >= t.capacity)
+            return null;
+
+        int index = idA * t.capacity + idB;
+        ContactInformation information = t.informations[index];
+        return (information != null) ? information : t.combined[index];
+    }
+
+    /**
+     * Know if information has been set for a pair of materials
+     * @param idA id of first material
+     * @param idB id of second material
+     * @return test result
+     */
+    public boolean contains(int idA, int idB)
+    {
+        Table t = table;
+        if (idA < 0 || idB < 0 || idA >= t.capacity || idB >= t.capacity)
+            return false;
+
+        return t.informations[idA * t.capacity + idB] != null;
+    }
+
+    /**
+     * Set information of a pair of materials, in both orders
+     * @param idA id of first material
+     * @param idB id of second material
+     * @param information information, null to remove it
+     * @return previous information
+     */
+    public synchronized ContactInformation set(int idA, int idB, ContactInformation information)
+    {
+        if (!isUsed(idA) || !isUsed(idB))
+            return null;
+
+        Table newTable = editable();
+        ContactInformation previous = newTable.informations[idA * newTable.capacity + idB];
+        newTable.informations[idA * newTable.capacity + idB] = information;
+        newTable.informations[idB * newTable.capacity + idA] = information;
+        commit(newTable);
+        return previous;
+    }
+
+    /**
+     * Set information of a material alone, used to combine pairs with no information
+     * @param id material id
+     * @param information information, null to not combine pairs of this material
+     */
+    synchronized void setMaterialInformation(int id, ContactInformation information)
+    {
+        if (!isUsed(id))
+            return;
+
+        Table newTable = editable();
+        newTable.materialInformations[id] = information;
+        for (int i = 0; i < nextId; i++)
+        {
+            combine(newTable, id, i);
+        }
+        commit(newTable);
+    }
+
+    ContactInformation getMaterialInformation(int id)
+    {
+        Table t = table;
+        return (id < 0 || id >= t.capacity) ? null : t.materialInformations[id];
+    }
+
+    private boolean isUsed(int id)
+    {
+        return id >= 0 && id < nextId && used[id];
+    }
+
+    /**
+     * Start an edit, changes are then made on one copy of the table, published by the last endEdit
+     * Readers get tables of before the edit until it ends, changes of other threads made during the edit are published with it
+     * Edits can be nested
+     */
+    public synchronized void beginEdit()
+    {
+        editDepth++;
+    }
+
+    /**
+     * End an edit, the last one publishes all changes made since the first beginEdit
+     */
+    public synchronized void endEdit()
+    {
+        if (editDepth == 0)
+            throw new IllegalStateException("No edit to end");
+
+        if (--editDepth == 0 && pending != null)
+        {
+            publish(pending);
+            pending = null;
+        }
+    }
+
+    /**
+     * Get table holding last changes, published or not
+     */
+    private Table current()
+    {
+        return (pending != null) ? pending : table;
+    }
+
+    /**
+     * Get a table that can be changed, the table of the edit or a copy of current table
+     * @return unpublished table
+     */
+    private Table editable()
+    {
+        return (pending != null) ? pending : copy(table.capacity);
+    }
+
+    /**
+     * Publish a changed table, or keep it until the end of the edit
+     */
+    private void commit(Table newTable)
+    {
+        if (editDepth > 0)
+            pending = newTable;
+        else
+            publish(newTable);
+    }
+
+    /**
+     * Copy current table with a new capacity
+     * @param capacity capacity of the copy, not lower than current one
+     * @return unpublished copy
+     */
+    private Table copy(int capacity)
+    {
+        Table t = current();
+        Table newTable = new Table(capacity);
+        for (int i = 0; i < nextId; i++)
+        {
+            System.arraycopy(t.informations, i * t.capacity, newTable.informations, i * capacity, nextId);
+            System.arraycopy(t.combined, i * t.capacity, newTable.combined, i * capacity, nextId);
+        }
+        System.arraycopy(t.materialInformations, 0, newTable.materialInformations, 0, nextId);
+        if (used.length < capacity)
+        {
+            used = Arrays.copyOf(used, capacity);
+            freeIds = Arrays.copyOf(freeIds, capacity);
+        }
+        return newTable;
+    }
+
+    private void publish(Table newTable)
+    {
+        table = newTable;
+    }
+
+    /**
+     * Combine information of two materials in a table not published yet
+     */
+    private void combine(Table t, int idA, int idB)
+    {
+        ContactInformation a = t.materialInformations[idA];
+        ContactInformation b = t.materialInformations[idB];
+        ContactInformation information = null;
+        if (a != null && b != null)
+        {
+            information = new ContactInformation(
+                    combine(restitutionRule, a.coefRestitution, b.coefRestitution),
+                    combine(frictionRule, a.coefFriction, b.coefFriction),
+                    combine(sepRule, a.sep, b.sep));
+        }
+        t.combined[idA * t.capacity + idB] = information;
+        t.combined[idB * t.capacity + idA] = information;
+    }
+
+    private static float combine(int rule, float a, float b)
+    {
+        switch (rule)
+        {
+            case MIN:
+                return Math.min(a, b);
+            case MAX:
+                return Math.max(a, b);
+            case MULTIPLY:
+                return a * b;
+            case GEOMETRIC_MEAN:
+                return (float) Math.sqrt(a * b);
+            default:
+                return (a + b) * 0.5f;
+        }
+    }
+
+    /**
+     * Get number of registered materials, released ones excluded
+     * @return number of materials
+     */
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * Set rules used to combine information of two materials
+     * AVERAGE, MIN, MAX, MULTIPLY or GEOMETRIC_MEAN
+     * @param restitutionRule rule of restitution, MAX by default
+     * @param frictionRule rule of friction, GEOMETRIC_MEAN by default
+     * @param sepRule rule of separation, AVERAGE by default
+     */
+    public synchronized void setCombineRules(int restitutionRule, int frictionRule, int sepRule)
+    {
+        this.restitutionRule = restitutionRule;
+        this.frictionRule = frictionRule;
+        this.sepRule = sepRule;
+
+        Table newTable = editable();
+        for (int i = 0; i < nextId; i++)
+        {
+            for (int j = i; j < nextId; j++)
+            {
+                combine(newTable, i, j);
+            }
+        }
+        commit(newTable);
+    }
+
+    public synchronized int getRestitutionRule()
+    {
+        return restitutionRule;
+    }
+
+    public synchronized int getFrictionRule()
+    {
+        return frictionRule;
+    }
+
+    public synchronized int getSepRule()
+    {
+        return sepRule;
+    }
+}
@@ -2,42 +2,82 @@ package org.cora.physics.entities.material;
 
 import org.cora.physics.collision.ContactInformation;
 
-import java.util.HashMap;
-import java.util.Map;
 /**
  * Material that define contact behavior
  * Exemple: Collision between wood and glass
+ * Each material has an id in its registry, information of pairs is stored by the registry
+ * Materials only share information with materials of the same registry, see Engine.getMaterialRegistry
  */
 public class MaterialType
 {
-    private Map<MaterialType, ContactInformation> collisionMaterials;
     public final static float DEFAULT_DENSITY = 0.05f;
+    private final MaterialRegistry registry;
+    private int id;
     private float density;
 
-    public MaterialType(float density)
+    public MaterialType(MaterialRegistry registry, float density)
     {
+        if (registry == null)
+            throw new IllegalArgumentException("Registry must not be null");
+
+        this.registry = registry;
+        this.id = registry.register();
         this.density = density;
-        collisionMaterials = new HashMap<MaterialType, ContactInformation>();
     }
 
-    public MaterialType()
+    public MaterialType(MaterialRegistry registry)
+    {
+        this(registry, DEFAULT_DENSITY);
+    }
+
+    /**
+     * Get id of the material in its registry
+     * @return id or -1 if released
+     */
+    public int getId()
+    {
+        return id;
+    }
+
+    /**
+     * Remove information of this material from its registry, its id can be given to a new material
+     * A released material has no information anymore
+     */
+    public void release()
+    {
+        if (id < 0)
+            return;
+
+        registry.release(id);
+        id = -1;
+    }
+
+    public boolean isReleased()
     {
-        this(DEFAULT_DENSITY);
+        return id < 0;
+    }
+
+    public MaterialRegistry getRegistry()
+    {
+        return registry;
     }
 
     /**
      * Get information related to a material
+     * Combined from information of both materials if the pair has no information
      * @param material colliding material
      * @return information or null if not material not present
      */
     public ContactInformation getMaterialInformation(MaterialType material)
     {
-        return collisionMaterials.get(material);
+        if (registry != material.registry)
+            return null;
+        return registry.get(id, material.id);
     }
     
     public boolean isPresent(MaterialType material)
     {
-        return collisionMaterials.containsKey(material);
+        return registry == material.registry && registry.contains(id, material.id);
     }
 
     /**
@@ -47,18 +87,17 @@ public class MaterialType
      */
     public void addMaterialInformation(MaterialType material, ContactInformation information)
     {
-        collisionMaterials.put(material, information);
-        
-        if (this != material)
-            material.addMaterialInformationFree(this, information);
+        if (registry == material.registry)
+            registry.set(id, material.id, information);
     }
 
     /**
      * Do not use
+     * Same as addMaterialInformation, information is stored once for both materials
      */
     public void addMaterialInformationFree(MaterialType material, ContactInformation information)
     {
-        collisionMaterials.put(material, information);
+        addMaterialInformation(material, information);
     }
     
     public void addMaterialInformation(MaterialType material, float coefRestitution, float coefFriction, float sep)
@@ -74,19 +113,38 @@ public class MaterialType
      */
     public ContactInformation removeMaterialInformation(MaterialType material)
     {
-        if (this == material)
-            return collisionMaterials.remove(material);
-        
-        collisionMaterials.remove(material);
-        return removeMaterialInformationFree(this);
+        if (registry != material.registry)
+            return null;
+        return registry.set(id, material.id, null);
     }
 
     /**
      * Do not use
+     * Same as removeMaterialInformation
      */
     public ContactInformation removeMaterialInformationFree(MaterialType material)
     {
-        return collisionMaterials.remove(material);
+        return removeMaterialInformation(material);
+    }
+
+    /**
+     * Set information of this material alone
+     * Used to combine information with materials that have no information with this one
+     * @param information information, null to not combine
+     */
+    public void setContactInformation(ContactInformation information)
+    {
+        registry.setMaterialInformation(id, information);
+    }
+
+    public void setContactInformation(float coefRestitution, float coefFriction, float sep)
+    {
+        setContactInformation(new ContactInformation(coefRestitution, coefFriction, sep));
+    }
+
+    public ContactInformation getContactInformation()
+    {
+        return registry.getMaterialInformation(id);
     }
 
     /**
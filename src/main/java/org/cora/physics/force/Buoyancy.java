@@ -41,4 +41,10 @@ public class Buoyancy extends ForceGenerator
         force.y = liquidDensity * volume * (depth - maxDepth - waterHeight) / 2 * maxDepth;
         element.addForce(force);
     }
+
+    @Override
+    public boolean isThreadSafe()
+    {
+        return true;
+    }
 }
@@ -11,6 +11,16 @@ public abstract class ForceGenerator implements Cloneable
 {
     public abstract void updateForce(Particle element, float dt);
 
+    /**
+     * Know if updateForce can be called at the same time for different elements
+     * A thread safe generator only writes on the updated element and does not change its own state
+     * @return true if the generator can be updated in parallel
+     */
+    public boolean isThreadSafe()
+    {
+        return false;
+    }
+
     public Object clone()
     {
         try
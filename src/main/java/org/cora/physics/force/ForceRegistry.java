@@ -7,6 +7,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Registry that holds force applied on element
@@ -60,9 +62,13 @@ public class ForceRegistry implements Cloneable
 
     Map<Particle, ArrayList<Registration>> registrations;
 
+    // Elements with registrations, in registration order
+    private ArrayList<Particle> elements;
+
     public ForceRegistry()
     {
         registrations = new HashMap<Particle, ArrayList<Registration>>();
+        elements = new ArrayList<Particle>();
     }
 
     @Override
@@ -90,6 +96,7 @@ public class ForceRegistry implements Cloneable
 
             registry.registrations.put(e.getKey(), new ArrayList<>(e.getValue()));
         }
+        registry.elements = new ArrayList<>(elements);
 
         return registry;
     }
@@ -118,6 +125,7 @@ public class ForceRegistry implements Cloneable
 
             registry.registrations.put(e.getKey(), new ArrayList<>(e.getValue()));
         }
+        registry.elements = new ArrayList<>(elements);
 
         return registry;
     }
@@ -130,6 +138,7 @@ public class ForceRegistry implements Cloneable
             entry.getValue().clear();
         }
         registrations.clear();
+        elements.clear();
     }
 
     public ArrayList<Registration> getOrCreate(Particle p)
@@ -140,6 +149,7 @@ public class ForceRegistry implements Cloneable
         {
             tmpRegistrations = new ArrayList<Registration>();
             registrations.put(p, tmpRegistrations);
+            elements.add(p);
         }
 
         return tmpRegistrations;
@@ -179,19 +189,103 @@ public class ForceRegistry implements Cloneable
 
         tmpRegistrations.clear();
         registrations.remove(p);
+        elements.remove(p);
     }
 
+    /**
+     * Update forces in registration order of elements
+     * @param dt time since last update
+     */
     public void update(float dt)
     {
-        for (Entry<Particle, ArrayList<Registration>> entry : registrations
-                .entrySet())
+        for (int j = 0; j < elements.size(); j++)
         {
-            Particle p = entry.getKey();
-            ArrayList<Registration> tmpRegistrations = entry.getValue();
+            Particle p = elements.get(j);
+            if (!p.isAwake())
+                continue;
+
+            ArrayList<Registration> tmpRegistrations = registrations.get(p);
             for (int i = 0; i < tmpRegistrations.size(); i++)
             {
                 tmpRegistrations.get(i).force.updateForce(p, dt);
             }
         }
     }
+
+    /**
+     * Update forces, elements are split between pool threads
+     * Thread safe generators are updated in parallel, other generators are then updated on calling thread
+     * Forces of an element may then be summed in another order than serial update, results can differ by rounding
+     * @param dt time since last update
+     * @param pool fork join pool, null to update on calling thread
+     */
+    public void update(float dt, ForkJoinPool pool)
+    {
+        if (pool == null || elements.size() <= ForcesTask.MIN_ELEMENTS)
+        {
+            update(dt);
+            return;
+        }
+
+        pool.invoke(new ForcesTask(0, elements.size(), dt));
+
+        for (int j = 0; j < elements.size(); j++)
+        {
+            Particle p = elements.get(j);
+            if (!p.isAwake())
+                continue;
+
+            ArrayList<Registration> tmpRegistrations = registrations.get(p);
+            for (int i = 0; i < tmpRegistrations.size(); i++)
+            {
+                ForceGenerator force = tmpRegistrations.get(i).force;
+                if (!force.isThreadSafe())
+                    force.updateForce(p, dt);
+            }
+        }
+    }
+
+    /**
+     * Update thread safe generators of a range of elements
+     */
+    private class ForcesTask extends RecursiveAction
+    {
+        private final static int MIN_ELEMENTS = 256;
+
+        private final int start, end;
+        private final float dt;
+
+        public ForcesTask(int start, int end, float dt)
+        {
+            this.start = start;
+            this.end = end;
+            this.dt = dt;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (end - start <= MIN_ELEMENTS)
+            {
+                for (int j = start; j < end; j++)
+                {
+                    Particle p = elements.get(j);
+                    if (!p.isAwake())
+                        continue;
+
+                    ArrayList<Registration> tmpRegistrations = registrations.get(p);
+                    for (int i = 0; i < tmpRegistrations.size(); i++)
+                    {
+                        ForceGenerator force = tmpRegistrations.get(i).force;
+                        if (force.isThreadSafe())
+                            force.updateForce(p, dt);
+                    }
+                }
+                return;
+            }
+
+            int middle = (start + end) >>> 1;
+            invokeAll(new ForcesTask(start, middle, dt), new ForcesTask(middle, end, dt));
+        }
+    }
 }
@@ -22,6 +22,12 @@ public class Gravity extends ForceGenerator
 	p.addForce(gravity.multiply(p.getMass()));
     }
 
+    @Override
+    public boolean isThreadSafe()
+    {
+        return true;
+    }
+
     @Override
     public Object clone()
     {
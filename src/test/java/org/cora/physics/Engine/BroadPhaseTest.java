@@ -0,0 +1,219 @@
+package org.cora.physics.Engine;
+
+import org.cora.maths.Form;
+import org.cora.maths.Vector2D;
+import org.cora.maths.sRectangle;
+import org.cora.physics.entities.Particle;
+import org.cora.physics.entities.RigidBody;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Each broad phase must find every pair of elements whose saved bounds overlap
+ * Pairs are compared with element indices, ids of broad phases differ
+ */
+public class BroadPhaseTest
+{
+    private final static float WORLD_SIZE = 1000.0f;
+
+    private static ArrayList<BroadPhase> createBroadPhases()
+    {
+        ArrayList<BroadPhase> broadPhases = new ArrayList<BroadPhase>();
+        QuadTree quadTree = new QuadTree();
+        quadTree.init(0, 0, WORLD_SIZE, WORLD_SIZE);
+        broadPhases.add(quadTree);
+        broadPhases.add(new SweepAndPrune());
+        broadPhases.add(new SpatialHashGrid(50.0f));
+        broadPhases.add(new DynamicAABBTree());
+        return broadPhases;
+    }
+
+    private static Form createBox(float width, float height)
+    {
+        Form form = new Form();
+        form.addPoint(new Vector2D(-width * 0.5f, -height * 0.5f));
+        form.addPoint(new Vector2D(width * 0.5f, -height * 0.5f));
+        form.addPoint(new Vector2D(width * 0.5f, height * 0.5f));
+        form.addPoint(new Vector2D(-width * 0.5f, height * 0.5f));
+        form.updateCenter();
+        return form;
+    }
+
+    private static ArrayList<Particle> createElements(Random random, int count)
+    {
+        ArrayList<Particle> elements = new ArrayList<Particle>();
+        for (int i = 0; i < count; i++)
+        {
+            RigidBody body = new RigidBody();
+            body.setForm(createBox(5 + random.nextFloat() * 35, 5 + random.nextFloat() * 35));
+            body.setPosition(random.nextFloat() * WORLD_SIZE, random.nextFloat() * WORLD_SIZE);
+            body.initPhysics();
+            body.updateBounds();
+            elements.add(body);
+        }
+        return elements;
+    }
+
+    private static void moveElements(Random random, ArrayList<Particle> elements)
+    {
+        for (int i = 0; i < elements.size(); i++)
+        {
+            Particle p = elements.get(i);
+            p.setPosition(p.getPosition().x + (random.nextFloat() - 0.5f) * 60,
+                    p.getPosition().y + (random.nextFloat() - 0.5f) * 60);
+            p.updateBounds();
+        }
+    }
+
+    private static boolean overlaps(Particle A, Particle B)
+    {
+        sRectangle a = A.getSavedSRectangleBound();
+        sRectangle b = B.getSavedSRectangleBound();
+        return a.getMinX() <= b.getMaxX() && a.getMaxX() >= b.getMinX()
+                && a.getMinY() <= b.getMaxY() && a.getMaxY() >= b.getMinY();
+    }
+
+    private static Map<Particle, Integer> indexElements(ArrayList<Particle> elements)
+    {
+        Map<Particle, Integer> indices = new HashMap<Particle, Integer>();
+        for (int i = 0; i < elements.size(); i++)
+        {
+            indices.put(elements.get(i), i);
+        }
+        return indices;
+    }
+
+    private static Set<Long> bruteForcePairs(ArrayList<Particle> elements)
+    {
+        Set<Long> pairs = new HashSet<Long>();
+        for (int i = 0; i < elements.size(); i++)
+        {
+            for (int j = i + 1; j < elements.size(); j++)
+            {
+                if (overlaps(elements.get(i), elements.get(j)))
+                    pairs.add(PairSet.key(i, j));
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Get overlapping pairs found by a broad phase
+     * Only the dynamic tree, with fat bounds, may find pairs whose saved bounds do not overlap, they are ignored
+     */
+    private static Set<Long> overlappingPairs(BroadPhase broadPhase, ArrayList<Particle> elements)
+    {
+        Map<Particle, Integer> indices = indexElements(elements);
+        PairSet pairSet = new PairSet();
+        broadPhase.update(elements);
+        broadPhase.findPairs(pairSet);
+
+        Set<Long> pairs = new HashSet<Long>();
+        for (int i = 0; i < pairSet.size(); i++)
+        {
+            Particle A = pairSet.getA(i);
+            Particle B = pairSet.getB(i);
+            assertTrue("Pair of unknown elements", indices.containsKey(A) && indices.containsKey(B));
+            assertTrue("Pair of an element with itself", A != B);
+            boolean overlapping = overlaps(A, B);
+            if (!(broadPhase instanceof DynamicAABBTree))
+                assertTrue("Pair of elements not overlapping", overlapping);
+            if (overlapping)
+            {
+                assertTrue("Pair found twice", pairs.add(PairSet.key(indices.get(A), indices.get(B))));
+            }
+        }
+        return pairs;
+    }
+
+    private static void assertSamePairs(ArrayList<BroadPhase> broadPhases, ArrayList<Particle> elements)
+    {
+        Set<Long> expected = bruteForcePairs(elements);
+        for (int i = 0; i < broadPhases.size(); i++)
+        {
+            BroadPhase broadPhase = broadPhases.get(i);
+            assertEquals(broadPhase.getClass().getSimpleName(), expected, overlappingPairs(broadPhase, elements));
+        }
+    }
+
+    @Test
+    public void findsSamePairsAsBruteForce()
+    {
+        Random random = new Random(42);
+        ArrayList<Particle> elements = createElements(random, 300);
+        ArrayList<BroadPhase> broadPhases = createBroadPhases();
+
+        assertSamePairs(broadPhases, elements);
+    }
+
+    @Test
+    public void findsSamePairsAfterMoves()
+    {
+        Random random = new Random(7);
+        ArrayList<Particle> elements = createElements(random, 300);
+        ArrayList<BroadPhase> broadPhases = createBroadPhases();
+
+        assertSamePairs(broadPhases, elements);
+        for (int step = 0; step < 10; step++)
+        {
+            moveElements(random, elements);
+            assertSamePairs(broadPhases, elements);
+        }
+    }
+
+    @Test
+    public void findsSamePairsAfterRemoves()
+    {
+        Random random = new Random(13);
+        ArrayList<Particle> elements = createElements(random, 300);
+        ArrayList<BroadPhase> broadPhases = createBroadPhases();
+
+        assertSamePairs(broadPhases, elements);
+        while (elements.size() > 10)
+        {
+            for (int i = 0; i < 40 && elements.size() > 10; i++)
+            {
+                Particle removed = elements.remove(random.nextInt(elements.size()));
+                for (int j = 0; j < broadPhases.size(); j++)
+                {
+                    broadPhases.get(j).remove(removed);
+                }
+            }
+            moveElements(random, elements);
+            assertSamePairs(broadPhases, elements);
+        }
+    }
+
+    @Test
+    public void pairsAreSortedByKey()
+    {
+        Random random = new Random(21);
+        ArrayList<Particle> elements = createElements(random, 200);
+        ArrayList<BroadPhase> broadPhases = createBroadPhases();
+
+        for (int i = 0; i < broadPhases.size(); i++)
+        {
+            BroadPhase broadPhase = broadPhases.get(i);
+            PairSet pairs = new PairSet();
+            broadPhase.update(elements);
+            broadPhase.findPairs(pairs);
+            pairs.sort();
+            for (int j = 0; j < pairs.size(); j++)
+            {
+                long key = pairs.getKey(j);
+                assertEquals(PairSet.key(broadPhase.getId(pairs.getA(j)), broadPhase.getId(pairs.getB(j))), key);
+                if (j > 0)
+                    assertTrue("Pairs not sorted", pairs.getKey(j - 1) < key);
+            }
+        }
+    }
+}
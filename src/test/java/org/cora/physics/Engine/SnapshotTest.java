@@ -0,0 +1,134 @@
+package org.cora.physics.Engine;
+
+import org.cora.maths.Form;
+import org.cora.maths.Vector2D;
+import org.cora.physics.entities.RigidBody;
+import org.cora.physics.force.Gravity;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Steps done after a restore must give the same states as the steps done after the snapshot
+ * States are compared with the bytes written by snapshot, elements, kept contacts and colliding pairs
+ */
+public class SnapshotTest
+{
+    private final static float DT = 1.0f / 60.0f;
+
+    private static Form createBox(float width, float height)
+    {
+        Form form = new Form();
+        form.addPoint(new Vector2D(-width * 0.5f, -height * 0.5f));
+        form.addPoint(new Vector2D(width * 0.5f, -height * 0.5f));
+        form.addPoint(new Vector2D(width * 0.5f, height * 0.5f));
+        form.addPoint(new Vector2D(-width * 0.5f, height * 0.5f));
+        form.updateCenter();
+        return form;
+    }
+
+    /**
+     * Create a stack of boxes falling on a static ground
+     */
+    private static Engine createWorld(BroadPhase broadPhase)
+    {
+        Engine engine = new Engine();
+        engine.setBroadPhase(broadPhase);
+        engine.setDeterministic(true);
+
+        RigidBody ground = new RigidBody();
+        ground.setForm(createBox(800, 40));
+        ground.setPosition(400, 580);
+        ground.initPhysicsInverseMass(0);
+        ground.setInverseInertia(0);
+        engine.addElement(ground);
+
+        for (int i = 0; i < 8; i++)
+        {
+            RigidBody box = new RigidBody();
+            box.setForm(createBox(40, 30));
+            box.setPosition(380 + (i % 2) * 10, 520 - i * 35);
+            box.setOrientation(i * 0.05f);
+            box.initPhysics();
+            engine.addElement(box);
+            engine.addForce(box, new Gravity(new Vector2D(0, 100.0f)));
+        }
+        return engine;
+    }
+
+    private static void step(Engine engine, int steps)
+    {
+        for (int i = 0; i < steps; i++)
+        {
+            engine.update(DT);
+        }
+    }
+
+    private static byte[] snapshot(Engine engine)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(engine.getSnapshotSize());
+        engine.snapshot(buffer);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static void assertSameStepsAfterRestore(BroadPhase broadPhase)
+    {
+        Engine engine = createWorld(broadPhase);
+        step(engine, 40);
+        byte[] saved = snapshot(engine);
+
+        step(engine, 60);
+        byte[] expected = snapshot(engine);
+
+        assertTrue(engine.restore(ByteBuffer.wrap(saved)));
+        assertArrayEquals(broadPhase.getClass().getSimpleName(), saved, snapshot(engine));
+
+        step(engine, 60);
+        assertArrayEquals(broadPhase.getClass().getSimpleName(), expected, snapshot(engine));
+    }
+
+    @Test
+    public void restoreGivesSameStepsWithQuadTree()
+    {
+        QuadTree quadTree = new QuadTree();
+        quadTree.init(0, 0, 1024, 1024);
+        assertSameStepsAfterRestore(quadTree);
+    }
+
+    @Test
+    public void restoreGivesSameStepsWithSweepAndPrune()
+    {
+        assertSameStepsAfterRestore(new SweepAndPrune());
+    }
+
+    @Test
+    public void restoreGivesSameStepsWithSpatialHashGrid()
+    {
+        assertSameStepsAfterRestore(new SpatialHashGrid(64.0f));
+    }
+
+    @Test
+    public void restoreGivesSameStepsWithDynamicAABBTree()
+    {
+        assertSameStepsAfterRestore(new DynamicAABBTree());
+    }
+
+    @Test
+    public void restoreFailsWhenElementsChanged()
+    {
+        Engine engine = createWorld(new SweepAndPrune());
+        step(engine, 10);
+        byte[] saved = snapshot(engine);
+
+        RigidBody box = new RigidBody();
+        box.setForm(createBox(20, 20));
+        box.initPhysics();
+        engine.addElement(box);
+
+        assertTrue(!engine.restore(ByteBuffer.wrap(saved)));
+    }
+}